@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic stand-ins for the game's files.  Everything is generated
+ * from fixed seeds, so runs on different commits measure the same data.
+ */
+final class BenchmarkFixtures {
+    private static final long SEED = 0x50335753L;
+    private static final Charset charset = Charset.forName(CPRFile.CHARSET);
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Write a CPR archive in the layout CPRFile reads: a signature
+     * padded to 0x20 bytes, then headers each followed by the data for
+     * their entries.  Only one header's worth of entries is held at a
+     * time, so entries can be generated as they're written.
+     */
+    static void writeArchive(File file,
+                             Iterator<Map.Entry<String, byte[]>> entries,
+                             int entriesPerHeader)
+            throws IOException {
+        try (OutputStream output = new BufferedOutputStream(
+                 new FileOutputStream(file))) {
+            byte[] signature = new byte[0x20];
+            byte[] signatureText = "ASCARON_ARCHIVE V0.9".getBytes(charset);
+            System.arraycopy(signatureText, 0, signature, 0,
+                             signatureText.length);
+            output.write(signature);
+            long position = signature.length;
+            List<Map.Entry<String, byte[]>> headerEntries = new ArrayList<>();
+            while (entries.hasNext()) {
+                headerEntries.clear();
+                while (entries.hasNext()
+                       && headerEntries.size() < entriesPerHeader) {
+                    headerEntries.add(entries.next());
+                }
+                int headerLength = 16;
+                long dataLength = 0;
+                for (Map.Entry<String, byte[]> entry : headerEntries) {
+                    headerLength += 12 + entry.getKey().length() + 1;
+                    dataLength += entry.getValue().length;
+                }
+                if (position + headerLength + dataLength > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(
+                        "archive would be too large for CPRFile");
+                }
+                ByteBuffer header = ByteBuffer.allocate(headerLength);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(headerLength);
+                header.putInt(headerLength - 4);
+                header.putInt(headerEntries.size());
+                header.putInt((int) dataLength);
+                long dataPosition = position + headerLength;
+                for (Map.Entry<String, byte[]> entry : headerEntries) {
+                    header.putInt((int) dataPosition);
+                    header.putInt(entry.getValue().length);
+                    header.putInt(1);
+                    header.put(entry.getKey().getBytes(charset));
+                    header.put((byte) 0);
+                    dataPosition += entry.getValue().length;
+                }
+                output.write(header.array());
+                for (Map.Entry<String, byte[]> entry : headerEntries) {
+                    output.write(entry.getValue());
+                }
+                position += headerLength + dataLength;
+            }
+        }
+    }
+
+    static void writeArchive(File file, Map<String, byte[]> entries,
+                             int entriesPerHeader)
+            throws IOException {
+        writeArchive(file, entries.entrySet().iterator(), entriesPerHeader);
+    }
+
+    static String fillerName(int index) {
+        return String.format("filler\\entry%06d.dat", index);
+    }
+
+    /**
+     * @return count entries of size random bytes each, named by
+     *         fillerName.  Each entry's data is made as it's asked for.
+     */
+    static Iterator<Map.Entry<String, byte[]>> fillerEntries(int count,
+                                                             int size) {
+        Random random = new Random(SEED);
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                return new AbstractMap.SimpleImmutableEntry<>(
+                    fillerName(next++), data);
+            }
+        };
+    }
+
+    /**
+     * @return Random bytes with every one of PatchWorker's patch sites
+     *         in place, filled in for 1280x1024.
+     */
+    static byte[] executable() {
+        byte[] executable = new byte[0x70000];
+        new Random(SEED).nextBytes(executable);
+        ByteBuffer buffer = ByteBuffer.wrap(executable);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (DWordBinaryPatch patch : PatchWorker.executablePatches) {
+            int[] pattern = patch.getBytePattern();
+            int position = (int) patch.getOffset();
+            int numValues = 0;
+            for (int i = 0; i < pattern.length; i++) {
+                if (pattern[i] == -1) {
+                    // Four -1s in a row: width first, then height.
+                    buffer.putInt(position + i, numValues++ == 0 ? 1280 : 1024);
+                    i += 3;
+                } else {
+                    executable[position + i] = (byte) pattern[i];
+                }
+            }
+        }
+        return executable;
+    }
+
+    /**
+     * @return A 24-bit BMP with smooth gradients plus some noise, which
+     *         is roughly what the game's artwork gives the resampler.
+     */
+    static byte[] bmp(int width, int height) throws IOException {
+        BufferedImage image =
+            new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(SEED);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 255 / width) << 16)
+                                   | ((y * 255 / height) << 8)
+                                   | random.nextInt(64));
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "bmp", output);
+        return output.toByteArray();
+    }
+
+    /**
+     * @return An INI file of roughly numSections sections with CRLF line
+     *         endings, containing the sections and keys that
+     *         accelMapPatcher() patches somewhere in the middle.
+     */
+    static String accelMapINI(int numSections) {
+        StringBuilder ini = new StringBuilder();
+        for (int i = 0; i < numSections; i++) {
+            if (i == numSections / 2) {
+                ini.append("[SCREEN2]\r\nSize=1280 1024\r\n");
+                ini.append("[ANIM2]\r\nFrame0=30024 0 0 0 0 1280 1024 0\r\n");
+                ini.append("Frame1=30025 0 0 0 0 1280 1024 0\r\n");
+            }
+            ini.append(String.format("[SECTION%d]\r\n", i));
+            ini.append(String.format("Size=%d %d\r\n", i, i * 2));
+            ini.append(String.format("Frame0=%d 0 0 0 0 640 480 0\r\n", i));
+            ini.append("; just a comment\r\n");
+        }
+        return ini.toString();
+    }
+
+    static INIPatcher accelMapPatcher() {
+        INIPatcher patcher = new INIPatcher();
+        patcher.addPatch("SCREEN2", "Size", "1280 1024", "$width $height");
+        patcher.addPatch("ANIM2", "Frame0", "30024 0 0 0 0 1280 1024 0",
+                         "30024 0 0 0 0 $width $height 0");
+        return patcher;
+    }
+
+    /**
+     * Create a directory that looks enough like a game installation for
+     * PatchWorker: an executable, and an archive holding the images and
+     * INI files it patches plus some filler.
+     */
+    static File gameDirectory() throws IOException {
+        File directory =
+            Files.createTempDirectory("p3widescreen-bench").toFile();
+        try (OutputStream output = new FileOutputStream(
+                 new File(directory, "Patrician3.exe"))) {
+            output.write(executable());
+        }
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("images\\Vollansichtskarte1280.bmp", bmp(1280, 1024));
+        entries.put("images\\HauptscreenE1280.bmp", bmp(284, 424));
+        entries.put("scripts\\accelMap.ini", (
+            "[SCREEN2]\r\nSize=1280 1024\r\n"
+            + "[ANIM2]\r\nFrame0=30024 0 0 0 0 1280 1024 0\r\n")
+            .getBytes(charset));
+        entries.put("scripts\\screenGame.ini", (
+            "[ANIM42]\r\nFrame0=11 0 0 0 0 996 42 0\r\n"
+            + "[ANIM44]\r\nFrame0=9 0 0 0 0 284 424 0\r\nPos=996 600\r\n")
+            .getBytes(charset));
+        entries.put("scripts\\textures.ini",
+                    "[TEX30024]\r\nOffsetNSize0=0 0 1280 1024\r\n"
+                        .getBytes(charset));
+        fillerEntries(1000, 256).forEachRemaining(
+            entry -> entries.put(entry.getKey(), entry.getValue()));
+        writeArchive(new File(directory, "p2arch0_eng.cpr"), entries, 100);
+        return directory;
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                if (!path.toFile().delete()) {
+                    throw new RuntimeException("can't delete " + path);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CPRFileBenchmark {
+    // NUMBERxSIZE.  Not separate parameters, since 100000 entries of 64
+    // KiB would be too big for CPRFile.
+    @Param({"1000x64", "1000x65536", "100000x64", "100000x1024"})
+    public String archiveShape;
+
+    private File archiveFile;
+    private CPRFile cprFile;
+    private String lastEntryName;
+    private final byte[] readBuffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] shape = archiveShape.split("x");
+        int numEntries = Integer.parseInt(shape[0]);
+        int entrySize = Integer.parseInt(shape[1]);
+        lastEntryName = BenchmarkFixtures.fillerName(numEntries - 1);
+        archiveFile = File.createTempFile("p3widescreen-bench", ".cpr");
+        BenchmarkFixtures.writeArchive(
+            archiveFile,
+            BenchmarkFixtures.fillerEntries(numEntries, entrySize), 500);
+        // Write the index cache for parseIndexCached.
+        cprFile = new CPRFile(archiveFile, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cprFile.close();
+        new CPRIndexCache(archiveFile).getCacheFile().delete();
+        archiveFile.delete();
+    }
+
+    @Benchmark
+    public CPRFile parseIndex() throws IOException {
+        try (CPRFile parsed = new CPRFile(archiveFile, false)) {
+            return parsed;
+        }
+    }
+
+    @Benchmark
+    public CPRFile parseIndexCached() throws IOException {
+        try (CPRFile parsed = new CPRFile(archiveFile, true)) {
+            return parsed;
+        }
+    }
+
+    @Benchmark
+    public long getInputStream() throws IOException {
+        long total = 0;
+        try (InputStream input = cprFile.getInputStream(lastEntryName)) {
+            int numRead;
+            while ((numRead = input.read(readBuffer)) > 0) {
+                total += numRead;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Several threads reading the same entry at once.  Compare with
+     * readEntry, which is the same work on one thread.
+     */
+    @Benchmark
+    @Threads(4)
+    public long readEntryConcurrently() {
+        return sumEntry();
+    }
+
+    @Benchmark
+    public long readEntry() {
+        return sumEntry();
+    }
+
+    private long sumEntry() {
+        ByteBuffer entry = cprFile.getByteBuffer(lastEntryName);
+        long total = 0;
+        while (entry.remaining() >= 8) {
+            total += entry.getLong();
+        }
+        while (entry.hasRemaining()) {
+            total += entry.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DWordBinaryPatchBenchmark {
+    private ByteBuffer executable;
+    private PatchSiteScanner scanner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executable = ByteBuffer.wrap(BenchmarkFixtures.executable());
+        scanner = new PatchSiteScanner(PatchWorker.executablePatches);
+    }
+
+    @Benchmark
+    public int testPatch() {
+        int numFailed = 0;
+        for (DWordBinaryPatch patch : PatchWorker.executablePatches) {
+            if (patch.testPatch(executable) != null) {
+                numFailed++;
+            }
+        }
+        return numFailed;
+    }
+
+    @Benchmark
+    public ByteBuffer patch() {
+        // Patching in place is fine: only the wildcard values change,
+        // and the patterns still match afterwards.
+        for (DWordBinaryPatch patch : PatchWorker.executablePatches) {
+            patch.patch(executable, 1920, 1080);
+        }
+        return executable;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long[][] scan() {
+        return scanner.scan(executable);
+    }
+}
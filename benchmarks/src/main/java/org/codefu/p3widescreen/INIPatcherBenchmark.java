@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class INIPatcherBenchmark {
+    @Param({"100", "10000", "250000"})
+    public int numSections;
+
+    private String ini;
+    private ByteBuffer iniBytes;
+    private INIPatcher patcher;
+    private final Map<String, Object> substitutions = new HashMap<>();
+
+    /**
+     * Counts what's written so the output can't be optimized away,
+     * without the cost of keeping it.
+     */
+    private static class CountingWriter extends Writer {
+        public long count;
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void write(String string) {
+            count += string.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        public long count;
+
+        @Override
+        public int write(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            buffer.position(buffer.limit());
+            count += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ini = BenchmarkFixtures.accelMapINI(numSections);
+        iniBytes = ByteBuffer.wrap(
+            ini.getBytes(Charset.forName(CPRFile.CHARSET)));
+        patcher = BenchmarkFixtures.accelMapPatcher();
+        substitutions.put("width", 1920);
+        substitutions.put("height", 1080);
+    }
+
+    @Benchmark
+    public long patch() throws IOException {
+        CountingWriter output = new CountingWriter();
+        patcher.patch(new StringReader(ini), output, substitutions);
+        return output.count;
+    }
+
+    @Benchmark
+    public long patchBytes() throws IOException {
+        CountingChannel output = new CountingChannel();
+        patcher.patch(iniBytes, output, substitutions);
+        return output.count;
+    }
+}
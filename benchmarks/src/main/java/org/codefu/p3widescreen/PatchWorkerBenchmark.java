@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PatchWorkerBenchmark {
+    private static final String IMAGE_NAME = "Vollansichtskarte1280.bmp";
+
+    @Param({"1280x1024", "1920x1080", "2560x1440", "3840x2160", "5120x2880"})
+    public String resolution;
+
+    private File gameDirectory;
+    private File outputDirectory;
+    private File outputFile;
+    private CPRFile cprFile;
+    private PatchWorker patchWorker;
+    private int width;
+    private int height;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] dimensions = resolution.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        gameDirectory = BenchmarkFixtures.gameDirectory();
+        // Writing somewhere other than the game directory means there's
+        // no journal, whose appends and fsyncs would otherwise be timed
+        // along with the resize.
+        outputDirectory = new File(gameDirectory, "output");
+        File imagesDirectory = new File(outputDirectory, "images");
+        if (!imagesDirectory.mkdirs()) {
+            throw new IOException("can't create " + imagesDirectory);
+        }
+        outputFile = new File(imagesDirectory, IMAGE_NAME);
+        cprFile = new PatchSources(null).getArchive(
+            new File(gameDirectory, "p2arch0_eng.cpr"));
+    }
+
+    @Setup(Level.Invocation)
+    public void createWorker() {
+        // Fresh sources each time, or the source image would only be
+        // decoded by the first invocation.  No resized image cache, or
+        // we'd only resize in the first invocation.
+        patchWorker = new PatchWorker(gameDirectory.getPath(),
+                                      outputDirectory.getPath(), width,
+                                      height, new PatchSources(null));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() {
+        // So every invocation writes a new file, like a first run.
+        outputFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFixtures.deleteRecursively(gameDirectory);
+    }
+
+    @Benchmark
+    public File writeResizedImage() throws IOException {
+        // A fresh PatchMetrics each time, so stages don't pile up.
+        try (PatchMetrics.Stage stage =
+                 new PatchMetrics().start("benchmark")) {
+            patchWorker.writeResizedImage(cprFile, IMAGE_NAME, width, height,
+                                          stage);
+        }
+        return outputFile;
+    }
+}
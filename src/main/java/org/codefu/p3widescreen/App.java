@@ -26,11 +26,11 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.text.DefaultCaret;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -50,6 +50,9 @@ public class App
     private static JTextField widthTextField;
     private static JTextField heightTextField;
     private static JButton patchButton;
+    // Older log text is dropped beyond this, so that logging lots at
+    // FINEST doesn't bog down the GUI.
+    private static final int LOG_AREA_MAX_CHARS = 1024 * 1024;
 
     private static void createGUI() {
         try {
@@ -81,6 +84,9 @@ public class App
         contentArea.add(patchButton, "span, align center, wrap");
         JTextArea logArea = new JTextArea(24, 60);
         logArea.setEditable(false);
+        // Monospaced so that the stage metrics table lines up.
+        logArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN,
+                                 logArea.getFont().getSize()));
         logArea.setLineWrap(true);
         logArea.setWrapStyleWord(true);
         // Always scroll to bottom on append.
@@ -139,37 +145,7 @@ public class App
     }
 
     private static void setUpLogging(JTextArea logArea) {
-        Handler handler = new Handler() {
-            public void appendToLogArea(LogRecord record) {
-                String message = getFormatter().format(record);
-                logArea.append(message);
-                //noinspection ThrowableResultOfMethodCallIgnored
-                Throwable throwable = record.getThrown();
-                if (throwable != null) {
-                    StringWriter stringWriter = new StringWriter();
-                    PrintWriter printWriter = new PrintWriter(stringWriter);
-                    throwable.printStackTrace(printWriter);
-                    logArea.append(stringWriter.toString());
-                }
-            }
-
-            @Override
-            public void publish(LogRecord record) {
-                if (SwingUtilities.isEventDispatchThread()) {
-                    appendToLogArea(record);
-                } else {
-                    SwingUtilities.invokeLater(() -> appendToLogArea(record));
-                }
-            }
-
-            @Override
-            public void flush() {
-            }
-
-            @Override
-            public void close() throws SecurityException {
-            }
-        };
+        Handler handler = new LogAreaHandler(logArea, LOG_AREA_MAX_CHARS);
         handler.setFormatter(new Formatter() {
             @Override
             public String format(LogRecord record) {
@@ -223,11 +199,48 @@ public class App
         }
     }
 
+    private static int runCommand(String[] args) {
+        String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+        try {
+            switch (args[0]) {
+                case "extract":
+                    return CPRExtractor.runCommand(commandArgs);
+                case "scan":
+                    return PatchSiteScanner.runCommand(commandArgs);
+                case "undo":
+                    return PatchJournal.runCommand(commandArgs);
+                case "identify":
+                    return BuildIdentifier.runCommand(commandArgs);
+                case "pack":
+                    return BatchPatcher.runPackCommand(commandArgs);
+                case "patch":
+                    return BatchPatcher.runCommand(commandArgs);
+                case "repack":
+                    return CPRWriter.runCommand(commandArgs);
+                case "resolve":
+                    return AssetOverlay.runCommand(commandArgs);
+                default:
+                    System.err.println("unknown command: " + args[0]);
+                    System.err.println("commands: extract, identify, pack,"
+                                       + " patch, repack, resolve, scan,"
+                                       + " undo");
+                    return 2;
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            logger.error("{} failed", args[0], e);
+            return 1;
+        }
+    }
+
     public static void main(String[] args) {
         // Set log level for our whole package.
         String packageName = App.class.getPackage().getName();
         packageLogger = java.util.logging.Logger.getLogger(packageName);
         //packageLogger.setLevel(Level.FINEST);
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(runCommand(args));
+        }
         // Hand it over to Swing.
         SwingUtilities.invokeLater(App::createGUI);
     }
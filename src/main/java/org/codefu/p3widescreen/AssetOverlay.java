@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The assets the game will actually load: any number of CPR archives
+ * and loose directories merged into one index.
+ *
+ * Layers are added highest priority first.  Each asset is resolved
+ * once, when its layer is added, so looking one up is a single hash
+ * lookup no matter how many layers there are.  Names use backslashes,
+ * like CPR entry names, and are matched without regard to case, like
+ * Windows does.
+ *
+ * Add all the layers before sharing an overlay between threads.
+ * After that, lookups and reads are safe from any thread.
+ */
+class AssetOverlay {
+    private static final Logger logger =
+        LoggerFactory.getLogger(AssetOverlay.class);
+
+    // Keyed by normalize(name).
+    private final HashMap<String, Asset> assets = new HashMap<>();
+
+    /**
+     * One asset, and the layer it comes from.
+     */
+    static class Asset {
+        private final String name;
+        private final File source;
+        // Exactly one of these is non-null.
+        private final CPRFile archive;
+        private final File file;
+
+        private Asset(String name, File source, CPRFile archive, File file) {
+            this.name = name;
+            this.source = source;
+            this.archive = archive;
+            this.file = file;
+        }
+
+        /**
+         * @return The name as spelled in its layer.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The archive or directory this asset comes from.
+         */
+        public File getSource() {
+            return source;
+        }
+
+        /**
+         * @return True if this is a loose file rather than an archive
+         *         entry.
+         */
+        public boolean isLoose() {
+            return file != null;
+        }
+
+        public long getLength() {
+            return archive != null ? archive.getLength(name) : file.length();
+        }
+
+        /**
+         * @return The asset's contents.  Archive entries aren't copied;
+         *         loose files are read onto the heap.
+         */
+        public ByteBuffer read() throws IOException {
+            if (archive != null) {
+                return archive.getByteBuffer(name);
+            }
+            return ExecutablePatchPlan.readFile(file);
+        }
+
+        /**
+         * Copy the asset to a channel without reading it onto the heap.
+         */
+        public void transferTo(WritableByteChannel target)
+                throws IOException {
+            if (archive != null) {
+                archive.transferTo(name, target);
+            } else {
+                CPRWriter.transferFile(file, target);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return isLoose() ? file.toString() : source + ": " + name;
+        }
+    }
+
+    /**
+     * The overlay the game sees: loose images and scripts take
+     * precedence over the data archive.  This is how PatchWorker's
+     * output overrides the originals.
+     */
+    static AssetOverlay forGame(File gameDirectory) throws IOException {
+        AssetOverlay overlay = new AssetOverlay();
+        overlay.addDirectory(gameDirectory, "images", "scripts");
+        overlay.addArchive(new File(gameDirectory, "p2arch0_eng.cpr"));
+        return overlay;
+    }
+
+    static String normalize(String name) {
+        return name.replace('/', '\\').toLowerCase(Locale.ROOT);
+    }
+
+    private void add(String name, File source, CPRFile archive, File file) {
+        Asset asset = new Asset(name, source, archive, file);
+        Asset existing = assets.putIfAbsent(normalize(name), asset);
+        if (existing != null) {
+            logger.trace("{} hidden by {}", asset, existing);
+        }
+    }
+
+    /**
+     * Add an archive, below every layer added so far.
+     */
+    public void addArchive(CPRFile archive, File archiveFile) {
+        for (String name : archive.getNames()) {
+            add(name, archiveFile, archive, null);
+        }
+    }
+
+    /**
+     * Add an archive, below every layer added so far.  The archive is
+     * opened eagerly, since we need every name in it anyway, and
+     * without the index cache, so that looking at a game directory
+     * doesn't write into it.
+     */
+    public void addArchive(File archiveFile) throws IOException {
+        addArchive(new CPRFile(archiveFile, false), archiveFile);
+    }
+
+    /**
+     * Add loose files, below every layer added so far.  A file's asset
+     * name is its path relative to root.
+     * @param subdirectories If given, only files under these
+     *                       directories of root are added.  Missing
+     *                       directories are skipped.
+     */
+    public void addDirectory(File root, String... subdirectories)
+            throws IOException {
+        Path rootPath = root.toPath();
+        if (subdirectories.length == 0) {
+            addFiles(rootPath, rootPath, root);
+        }
+        for (String subdirectory : subdirectories) {
+            addFiles(rootPath, rootPath.resolve(subdirectory), root);
+        }
+    }
+
+    private void addFiles(Path rootPath, Path start, File root)
+            throws IOException {
+        if (!Files.isDirectory(start)) {
+            logger.debug("no directory {}, skipping", start);
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(start)) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                StringBuilder name = new StringBuilder();
+                for (Path part : rootPath.relativize(path)) {
+                    if (name.length() > 0) {
+                        name.append('\\');
+                    }
+                    name.append(part);
+                }
+                add(name.toString(), root, null, path.toFile());
+            });
+        }
+    }
+
+    /**
+     * @return The asset the game would load for name, or null if no
+     *         layer has it.
+     */
+    public Asset find(String name) {
+        return assets.get(normalize(name));
+    }
+
+    /**
+     * Like find, but missing assets are an error.
+     */
+    public Asset get(String name) {
+        Asset asset = find(name);
+        if (asset == null) {
+            throw new RuntimeException(String.format(
+                "can't find asset \"%s\"", name));
+        }
+        return asset;
+    }
+
+    public ByteBuffer read(String name) throws IOException {
+        return get(name).read();
+    }
+
+    /**
+     * @return Normalized names of every asset in the overlay.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(assets.keySet());
+    }
+
+    /**
+     * Command line entry point, invoked via App as
+     * <code>resolve GAME_DIRECTORY NAME...</code>: print where the game
+     * would load each asset from.
+     * @return Process exit status: 1 if any asset wasn't found.
+     */
+    static int runCommand(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: resolve GAME_DIRECTORY NAME...");
+            return 2;
+        }
+        AssetOverlay overlay = forGame(new File(args[0]));
+        int status = 0;
+        for (int i = 1; i < args.length; i++) {
+            Asset asset = overlay.find(args[i]);
+            if (asset == null) {
+                System.out.println(args[i] + "  not found");
+                status = 1;
+            } else {
+                System.out.println(String.format(
+                    "%s  %s (%d bytes)", args[i], asset, asset.getLength()));
+            }
+        }
+        return status;
+    }
+}
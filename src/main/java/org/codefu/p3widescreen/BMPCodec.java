@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the kinds of BMP files the game uses, without going
+ * through ImageIO.
+ *
+ * Decoding reads rows straight from a buffer (such as
+ * CPRFile.getByteBuffer) into the byte array behind a TYPE_3BYTE_BGR
+ * image.  We handle uncompressed 8-bit paletted, 24-bit, and 32-bit
+ * images, with any of the usual info header versions, stored either
+ * bottom-up or top-down.  Encoding always writes an uncompressed 24-bit
+ * bottom-up BMP, streaming rows to a FileChannel.
+ */
+class BMPCodec {
+    private static final int FILE_HEADER_LENGTH = 14;
+    private static final int INFO_HEADER_LENGTH = 40;
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+    // Rows to gather up before each write when encoding.
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private BMPCodec() {
+    }
+
+    private static int rowLength(int width, int bitsPerPixel) {
+        // Rows are padded to a multiple of four bytes.
+        return ((width * bitsPerPixel + 31) / 32) * 4;
+    }
+
+    public static BufferedImage decode(ByteBuffer bmp) {
+        ByteBuffer buffer = bmp.duplicate();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int base = buffer.position();
+        if (buffer.remaining() < FILE_HEADER_LENGTH + INFO_HEADER_LENGTH
+            || buffer.get(base) != 'B' || buffer.get(base + 1) != 'M') {
+            throw new RuntimeException("not a BMP file");
+        }
+        int dataOffset = buffer.getInt(base + 10);
+        int infoHeaderLength = buffer.getInt(base + 14);
+        int infoHeader = base + FILE_HEADER_LENGTH;
+        if (infoHeaderLength < INFO_HEADER_LENGTH) {
+            throw new RuntimeException(String.format(
+                "unsupported BMP info header length %d", infoHeaderLength));
+        }
+        int width = buffer.getInt(infoHeader + 4);
+        int height = buffer.getInt(infoHeader + 8);
+        boolean topDown = height < 0;
+        height = Math.abs(height);
+        int bitsPerPixel = buffer.getShort(infoHeader + 14);
+        int compression = buffer.getInt(infoHeader + 16);
+        int colorsUsed = buffer.getInt(infoHeader + 32);
+        if (width <= 0 || height == 0) {
+            throw new RuntimeException(String.format(
+                "invalid BMP size %dx%d", width, height));
+        }
+        byte[] palette = null;
+        if (bitsPerPixel == 8 && compression == BI_RGB) {
+            palette = readPalette(buffer, infoHeader + infoHeaderLength,
+                                  colorsUsed == 0 ? 256 : colorsUsed);
+        } else if (bitsPerPixel == 24 && compression == BI_RGB) {
+            // Nothing to set up.
+        } else if (bitsPerPixel == 32
+                   && (compression == BI_RGB
+                       || (compression == BI_BITFIELDS
+                           && hasBGRMasks(buffer, infoHeader,
+                                          infoHeaderLength)))) {
+            // Nothing to set up: bytes are B, G, R, unused.
+        } else {
+            throw new RuntimeException(String.format(
+                "unsupported BMP format: %d bits per pixel, compression %d",
+                bitsPerPixel, compression));
+        }
+        int rowLength = rowLength(width, bitsPerPixel);
+        if ((long) dataOffset + (long) rowLength * height
+            > buffer.limit() - base) {
+            throw new RuntimeException("BMP pixel data is truncated");
+        }
+        BufferedImage image =
+            new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels =
+            ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        byte[] row = new byte[rowLength];
+        for (int y = 0; y < height; y++) {
+            buffer.position(base + dataOffset + y * rowLength);
+            buffer.get(row);
+            int outputPos = (topDown ? y : height - 1 - y) * width * 3;
+            if (bitsPerPixel == 24) {
+                System.arraycopy(row, 0, pixels, outputPos, width * 3);
+            } else if (bitsPerPixel == 32) {
+                for (int x = 0; x < width; x++) {
+                    pixels[outputPos++] = row[x * 4];
+                    pixels[outputPos++] = row[x * 4 + 1];
+                    pixels[outputPos++] = row[x * 4 + 2];
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int color = (row[x] & 0xff) * 3;
+                    if (color >= palette.length) {
+                        throw new RuntimeException(String.format(
+                            "BMP color index %d out of range", row[x] & 0xff));
+                    }
+                    pixels[outputPos++] = palette[color];
+                    pixels[outputPos++] = palette[color + 1];
+                    pixels[outputPos++] = palette[color + 2];
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return The palette as packed B, G, R triples.
+     */
+    private static byte[] readPalette(ByteBuffer buffer, int position,
+                                      int numColors) {
+        if (numColors > 256) {
+            throw new RuntimeException(String.format(
+                "BMP palette has %d colors", numColors));
+        }
+        byte[] palette = new byte[numColors * 3];
+        for (int i = 0; i < numColors; i++) {
+            // Entries are B, G, R, unused.
+            palette[i * 3] = buffer.get(position + i * 4);
+            palette[i * 3 + 1] = buffer.get(position + i * 4 + 1);
+            palette[i * 3 + 2] = buffer.get(position + i * 4 + 2);
+        }
+        return palette;
+    }
+
+    private static boolean hasBGRMasks(ByteBuffer buffer, int infoHeader,
+                                       int infoHeaderLength) {
+        // With a plain 40 byte info header the masks follow it;
+        // later versions include them in the header.  Either way they
+        // start at the same place.
+        int masks = infoHeader + INFO_HEADER_LENGTH;
+        return buffer.getInt(masks) == 0xff0000
+               && buffer.getInt(masks + 4) == 0xff00
+               && buffer.getInt(masks + 8) == 0xff;
+    }
+
+    /**
+     * Get one row of an image as packed B, G, R bytes.  Images made of
+     * interleaved bytes, which is what we get from both decode and
+     * ResampleOp, are copied directly; anything else goes through
+     * getRGB.
+     */
+    private static class RowReader {
+        private final BufferedImage image;
+        private final int width;
+        private byte[] data;
+        private int[] bandOffsets;
+        private int pixelStride;
+        private int scanlineStride;
+        private int dataOffset;
+        private int[] rgbRow;
+
+        public RowReader(BufferedImage image) {
+            this.image = image;
+            width = image.getWidth();
+            Raster raster = image.getRaster();
+            if (raster.getDataBuffer() instanceof DataBufferByte
+                && (raster.getSampleModel()
+                    instanceof PixelInterleavedSampleModel)
+                && image.getColorModel() instanceof ComponentColorModel
+                && image.getColorModel().getColorSpace().isCS_sRGB()
+                && raster.getNumBands() >= 3
+                && raster.getParent() == null) {
+                PixelInterleavedSampleModel sampleModel =
+                    (PixelInterleavedSampleModel) raster.getSampleModel();
+                data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                dataOffset = ((DataBufferByte) raster.getDataBuffer())
+                    .getOffset();
+                bandOffsets = sampleModel.getBandOffsets();
+                pixelStride = sampleModel.getPixelStride();
+                scanlineStride = sampleModel.getScanlineStride();
+            } else {
+                rgbRow = new int[width];
+            }
+        }
+
+        public void read(int y, ByteBuffer output) {
+            if (data != null) {
+                int pos = dataOffset + y * scanlineStride;
+                for (int x = 0; x < width; x++, pos += pixelStride) {
+                    output.put(data[pos + bandOffsets[2]]);
+                    output.put(data[pos + bandOffsets[1]]);
+                    output.put(data[pos + bandOffsets[0]]);
+                }
+            } else {
+                image.getRGB(0, y, width, 1, rgbRow, 0, width);
+                for (int rgb : rgbRow) {
+                    output.put((byte) rgb);
+                    output.put((byte) (rgb >> 8));
+                    output.put((byte) (rgb >> 16));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write image as a 24-bit BMP.  Any existing file is removed first
+     * rather than overwritten, since it may be a hard link into
+     * ResizedImageCache.
+     */
+    public static void encode(BufferedImage image, File output)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = rowLength(width, 24);
+        int padding = rowLength - width * 3;
+        long imageSize = (long) rowLength * height;
+        long fileSize = FILE_HEADER_LENGTH + INFO_HEADER_LENGTH + imageSize;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new RuntimeException(String.format(
+                "image too large for BMP: %dx%d", width, height));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(
+            Math.max(WRITE_BUFFER_SIZE,
+                     FILE_HEADER_LENGTH + INFO_HEADER_LENGTH + rowLength));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'B').put((byte) 'M');
+        buffer.putInt((int) fileSize);
+        buffer.putInt(0);
+        buffer.putInt(FILE_HEADER_LENGTH + INFO_HEADER_LENGTH);
+        buffer.putInt(INFO_HEADER_LENGTH);
+        buffer.putInt(width);
+        // Positive height means bottom-up, which is what everything
+        // expects.
+        buffer.putInt(height);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 24);
+        buffer.putInt(BI_RGB);
+        buffer.putInt((int) imageSize);
+        // Pixels per meter, horizontal and vertical, then colors used
+        // and important colors.
+        buffer.putInt(0).putInt(0).putInt(0).putInt(0);
+        RowReader rows = new RowReader(image);
+        Files.deleteIfExists(output.toPath());
+        try (FileChannel channel = FileChannel.open(
+                 output.toPath(), StandardOpenOption.CREATE_NEW,
+                 StandardOpenOption.WRITE)) {
+            for (int y = height - 1; y >= 0; y--) {
+                if (buffer.remaining() < rowLength) {
+                    writeFully(channel, buffer);
+                }
+                rows.read(y, buffer);
+                for (int i = 0; i < padding; i++) {
+                    buffer.put((byte) 0);
+                }
+            }
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Keeps copies of files before we replace them, storing each distinct
+ * content only once.
+ *
+ * The store is the p3widescreen-backups directory under a game (or
+ * output) directory.  Contents live in objects/, named by their
+ * SHA-256, and are hard linked from the original where the file system
+ * allows, else copied.  index.txt gets one line per file backed up:
+ *
+ * <pre>
+ * EVENT	PATH	SHA-256
+ * </pre>
+ *
+ * separated by tabs, where EVENT is when the store was opened (so
+ * every file backed up by one patch run shares it) and PATH is
+ * relative to the game directory, using forward slashes.
+ *
+ * Because objects may share their data with the original file, files
+ * that have been backed up must be replaced (deleted and recreated, or
+ * renamed over) rather than rewritten in place.
+ */
+class BackupStore {
+    private static final Logger logger =
+        LoggerFactory.getLogger(BackupStore.class);
+
+    static final String DIRECTORY_NAME = "p3widescreen-backups";
+    private static final String OBJECTS_DIRECTORY_NAME = "objects";
+    private static final String INDEX_FILE_NAME = "index.txt";
+
+    private final Path baseDirectory;
+    private final Path storeDirectory;
+    private final Path objectsDirectory;
+    private final Path indexFile;
+    private final String event;
+
+    public BackupStore(File baseDirectory) {
+        this.baseDirectory = baseDirectory.toPath().toAbsolutePath();
+        storeDirectory = this.baseDirectory.resolve(DIRECTORY_NAME);
+        objectsDirectory = storeDirectory.resolve(OBJECTS_DIRECTORY_NAME);
+        indexFile = storeDirectory.resolve(INDEX_FILE_NAME);
+        event = Instant.now().toString();
+    }
+
+    /**
+     * @return The p3widescreen-backups directory itself.
+     */
+    public File getDirectory() {
+        return storeDirectory.toFile();
+    }
+
+    /**
+     * @return When this store was opened, as written to index.txt.
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * @return Where the content with the given hash is kept.
+     */
+    public File getObject(String hash) {
+        return objectsDirectory.resolve(hash).toFile();
+    }
+
+    /**
+     * Back up file, which must be under the base directory.
+     * @return The SHA-256 of file, as given to getObject.
+     */
+    public String backUp(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        String hash = OutputManifest.hash(file);
+        if (hash == null) {
+            throw new RuntimeException(String.format(
+                "can't back up missing file %s", file));
+        }
+        Files.createDirectories(objectsDirectory);
+        Path object = objectsDirectory.resolve(hash);
+        if (Files.exists(object)) {
+            logger.info("{} is already backed up as {}", file, object);
+        } else {
+            storeObject(path, object);
+            logger.info("backing up {} to {}", file, object);
+        }
+        appendToIndex(relativeName(file), hash);
+        return hash;
+    }
+
+    /**
+     * Replace file with a copy of a backed up object.  Like everything
+     * else that replaces files here, this goes by way of a temporary
+     * file, so file is either entirely old or entirely restored.
+     *
+     * This always copies, never links: a restored file may be patched in
+     * place later (see PatchJournal), which must not reach the object.
+     */
+    public void restore(String hash, File file) throws IOException {
+        Path object = objectsDirectory.resolve(hash);
+        if (!Files.exists(object)) {
+            throw new RuntimeException(String.format(
+                "no backup %s to restore %s from", object, file));
+        }
+        Path path = file.toPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        Path tempPath = Files.createTempFile(path.getParent(),
+                                             path.getFileName().toString(),
+                                             ".tmp");
+        try {
+            Files.copy(object, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            forceFile(tempPath);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(path.getParent());
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        logger.info("restored {} from {}", file, object);
+    }
+
+    private static void storeObject(Path path, Path object)
+            throws IOException {
+        try {
+            Files.createLink(object, path);
+            forceDirectory(object.getParent());
+            return;
+        } catch (FileAlreadyExistsException e) {
+            // Another thread backed up the same content just now.
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("can't link {} to {}, copying instead: {}", object,
+                         path, e.toString());
+        }
+        Path tempPath = Files.createTempFile(object.getParent(),
+                                             object.getFileName().toString(),
+                                             ".tmp");
+        try {
+            Files.copy(path, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            // The journal will say this object is there as soon as we
+            // return, and the original is replaced right after, so the
+            // copy has to reach the disk before it gets its real name.
+            forceFile(tempPath);
+            Files.move(tempPath, object, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(object.getParent());
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static void forceFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                 path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Make sure directory's entries are on disk, where the platform lets
+     * us.  Java can only open directories for this on some systems (not
+     * Windows), so failing to is ignored.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(
+                 directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.trace("can't force directory {}: {}", directory,
+                         e.toString());
+        }
+    }
+
+    /**
+     * @return file's path relative to the base directory, using forward
+     *         slashes, as written to index.txt.
+     */
+    String relativeName(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        if (!path.startsWith(baseDirectory)) {
+            throw new RuntimeException(String.format(
+                "%s is not under %s", path, baseDirectory));
+        }
+        return baseDirectory.relativize(path).toString()
+            .replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return The file that relativeName gave name for.
+     */
+    File resolve(String name) {
+        return baseDirectory.resolve(name.replace('/', File.separatorChar))
+            .toFile();
+    }
+
+    private synchronized void appendToIndex(String name, String hash)
+            throws IOException {
+        try (Writer index = Files.newBufferedWriter(
+                 indexFile, StandardCharsets.UTF_8,
+                 StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            index.write(String.format("%s\t%s\t%s\n", event, name, hash));
+        }
+    }
+}
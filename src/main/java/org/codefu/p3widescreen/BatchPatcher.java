@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Patches many game installations without a GUI.  Installations are
+ * patched a few at a time and share one PatchSources, so identical
+ * archives are only parsed, and their images only decoded, once.
+ *
+ * Invoked via App as:
+ *
+ * <pre>
+ * patch [-j THREADS] -r WIDTHxHEIGHT DIRECTORY...
+ *       [-r WIDTHxHEIGHT DIRECTORY...]...
+ * </pre>
+ *
+ * Each -r applies to the directories after it.  One JSON object per
+ * installation is printed to standard output, in the order given, with
+ * "directory", "width", "height", "status" ("patched", "rejected" if
+ * pre-patch checks failed, or "failed"), "errors", and "stages" (the
+ * timings and I/O from PatchMetrics).  Logging goes to standard error as
+ * usual.
+ *
+ * It can also build a pack of pre-patched files for several
+ * resolutions from one unpatched installation, which is left alone:
+ *
+ * <pre>
+ * pack [-j THREADS] DIRECTORY OUTPUT_DIRECTORY WIDTHxHEIGHT...
+ * </pre>
+ *
+ * Each resolution gets its own OUTPUT_DIRECTORY/WIDTHxHEIGHT holding
+ * the executable, images, and scripts directories and nothing else, so
+ * it can be copied straight into an installation.  What each was made
+ * from is recorded beside it, in
+ * OUTPUT_DIRECTORY/WIDTHxHEIGHT.p3widescreen-manifest.properties, so
+ * that rebuilding the pack only redoes what changed.  The source images
+ * are decoded once for every resolution.  Results are printed as for
+ * patch, plus "output" giving the output directory.
+ *
+ * A directory given more than once for the same resolution is only
+ * patched once.  Jobs writing to the same directory at different
+ * resolutions are run one after another, in the order given, rather
+ * than at the same time.
+ */
+class BatchPatcher {
+    public static final int EXIT_SUCCESS = 0;
+    public static final int EXIT_SOME_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final Logger logger =
+        LoggerFactory.getLogger(BatchPatcher.class);
+
+    private static class Job {
+        public final String directory;
+        // Null to patch directory in place.
+        public final String outputDirectory;
+        public final int width;
+        public final int height;
+        // Canonical path of wherever this job writes.
+        public final String outputKey;
+        public String status;
+        public final List<String> errors = new ArrayList<>();
+        public String stagesJSON = "[]";
+
+        public Job(String directory, String outputDirectory, int width,
+                   int height) {
+            this.directory = directory;
+            this.outputDirectory = outputDirectory;
+            this.width = width;
+            this.height = height;
+            outputKey = canonicalPath(
+                outputDirectory == null ? directory : outputDirectory);
+        }
+    }
+
+    private final List<Job> jobs = new ArrayList<>();
+    // outputKey, width, and height of each job.
+    private final Set<List<Object>> jobKeys = new HashSet<>();
+    private int numThreads =
+        Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private static void printUsage() {
+        System.err.println("usage: patch [-j THREADS] -r WIDTHxHEIGHT"
+                           + " DIRECTORY...\n"
+                           + "             [-r WIDTHxHEIGHT DIRECTORY...]...");
+    }
+
+    private static void printPackUsage() {
+        System.err.println("usage: pack [-j THREADS] DIRECTORY"
+                           + " OUTPUT_DIRECTORY WIDTHxHEIGHT...");
+    }
+
+    private static String canonicalPath(String path) {
+        File file = new File(path);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Add job, unless the same output at the same resolution is already
+     * queued.
+     */
+    private void addJob(Job job) {
+        List<Object> key = new ArrayList<>();
+        key.add(job.outputKey);
+        key.add(job.width);
+        key.add(job.height);
+        if (!jobKeys.add(key)) {
+            logger.warn("{} given more than once for {}x{}, patching it once",
+                        job.outputDirectory == null ? job.directory
+                                                    : job.outputDirectory,
+                        job.width, job.height);
+            return;
+        }
+        jobs.add(job);
+    }
+
+    /**
+     * @return {width, height}, or null if resolution isn't WIDTHxHEIGHT.
+     */
+    private static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x", 2);
+        try {
+            return new int[] {Integer.parseInt(parts[0]),
+                              Integer.parseInt(parts[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Handle "-j THREADS" at args[i].
+     * @return The index of the last argument used, or -1 if the
+     *         argument is bad (an error will have been printed).
+     */
+    private int parseThreadsOption(String[] args, int i) {
+        if (++i >= args.length) {
+            System.err.println(args[i - 1] + " needs an argument");
+            return -1;
+        }
+        try {
+            numThreads = Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+            numThreads = 0;
+        }
+        if (numThreads < 1) {
+            System.err.println(String.format(
+                "invalid argument to %s: %s", args[i - 1], args[i]));
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * @return False if the arguments are bad (an error will have been
+     *         printed).
+     */
+    private boolean parseArguments(String[] args) {
+        int[] resolution = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-j")) {
+                if ((i = parseThreadsOption(args, i)) < 0) {
+                    return false;
+                }
+            } else if (arg.equals("-r")) {
+                if (++i >= args.length) {
+                    System.err.println(arg + " needs an argument");
+                    return false;
+                }
+                resolution = parseResolution(args[i]);
+                if (resolution == null) {
+                    System.err.println(String.format(
+                        "invalid argument to %s: %s", arg, args[i]));
+                    return false;
+                }
+            } else if (resolution == null) {
+                System.err.println("need -r WIDTHxHEIGHT before " + arg);
+                return false;
+            } else {
+                addJob(new Job(arg, null, resolution[0], resolution[1]));
+            }
+        }
+        if (jobs.isEmpty()) {
+            System.err.println("no game directories given");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return False if the arguments are bad (an error will have been
+     *         printed).
+     */
+    private boolean parsePackArguments(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j")) {
+                if ((i = parseThreadsOption(args, i)) < 0) {
+                    return false;
+                }
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 3) {
+            System.err.println("need a game directory, an output directory,"
+                               + " and at least one resolution");
+            return false;
+        }
+        String directory = positional.get(0);
+        File outputDirectory = new File(positional.get(1));
+        for (String arg : positional.subList(2, positional.size())) {
+            int[] resolution = parseResolution(arg);
+            if (resolution == null) {
+                System.err.println("invalid resolution: " + arg);
+                return false;
+            }
+            String name = resolution[0] + "x" + resolution[1];
+            addJob(new Job(directory,
+                           new File(outputDirectory, name).getPath(),
+                           resolution[0], resolution[1]));
+        }
+        return true;
+    }
+
+    private static void runJob(Job job, PatchSources sources) {
+        String outputDirectory = job.outputDirectory == null
+            ? job.directory : job.outputDirectory;
+        logger.info("patching {} for {}x{} into {}", job.directory,
+                    job.width, job.height, outputDirectory);
+        PatchWorker worker = new PatchWorker(
+            job.directory, outputDirectory, job.width, job.height, sources);
+        try {
+            if (worker.runPatch()) {
+                job.status = "patched";
+            } else {
+                job.status = "rejected";
+                job.errors.addAll(worker.getCheckFailures());
+            }
+        } catch (Exception e) {
+            logger.error("patching {} failed", job.directory, e);
+            job.status = "failed";
+            job.errors.add(e.toString());
+            for (Throwable suppressed : e.getSuppressed()) {
+                job.errors.add(suppressed.toString());
+            }
+        }
+        job.stagesJSON = worker.getMetrics().toJSON();
+    }
+
+    static String jsonString(String string) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static void printResult(PrintStream out, Job job) {
+        List<String> errors = new ArrayList<>();
+        for (String error : job.errors) {
+            errors.add(jsonString(error));
+        }
+        String output = job.outputDirectory == null
+            ? "" : ",\"output\":" + jsonString(job.outputDirectory);
+        out.println(String.format(
+            "{\"directory\":%s%s,\"width\":%d,\"height\":%d,"
+            + "\"status\":%s,\"errors\":[%s],\"stages\":%s}",
+            jsonString(job.directory), output, job.width, job.height,
+            jsonString(job.status), String.join(",", errors),
+            job.stagesJSON));
+    }
+
+    private int run() throws InterruptedException {
+        PatchSources sources = new PatchSources();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        // Two workers patching the same directory at once would trample
+        // each other's files, so jobs sharing one run in turn.
+        Map<String, List<Job>> jobsByOutput = new LinkedHashMap<>();
+        for (Job job : jobs) {
+            jobsByOutput.computeIfAbsent(job.outputKey, k -> new ArrayList<>())
+                .add(job);
+        }
+        try {
+            for (List<Job> outputJobs : jobsByOutput.values()) {
+                futures.add(executor.submit(() -> {
+                    for (Job job : outputJobs) {
+                        runJob(job, sources);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // runJob catches everything, so this is a bug.
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        int status = EXIT_SUCCESS;
+        for (Job job : jobs) {
+            printResult(System.out, job);
+            if (!job.status.equals("patched")) {
+                status = EXIT_SOME_FAILED;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Command line entry point.
+     * @return Process exit status: EXIT_SUCCESS if every installation
+     *         was patched, EXIT_SOME_FAILED if any wasn't, or EXIT_USAGE
+     *         for bad arguments.
+     */
+    static int runCommand(String[] args) throws InterruptedException {
+        BatchPatcher batchPatcher = new BatchPatcher();
+        if (!batchPatcher.parseArguments(args)) {
+            printUsage();
+            return EXIT_USAGE;
+        }
+        return batchPatcher.run();
+    }
+
+    /**
+     * Command line entry point for building a preset pack.
+     * @return Process exit status, as for runCommand.
+     */
+    static int runPackCommand(String[] args) throws InterruptedException {
+        BatchPatcher batchPatcher = new BatchPatcher();
+        if (!batchPatcher.parsePackArguments(args)) {
+            printPackUsage();
+            return EXIT_USAGE;
+        }
+        return batchPatcher.run();
+    }
+}
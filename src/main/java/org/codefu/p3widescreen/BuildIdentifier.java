@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Recognizes builds of the game by checksum, so that we can use the
+ * right patch offsets for a build we know, or refuse one we know we
+ * can't handle, before doing any real work.
+ *
+ * A checksum is the CRC32 of each 4 MiB chunk of a file, computed in
+ * parallel, then a CRC32 over those, written as "SIZE:CRC" in hex.
+ * Java 8 has no CRC32C, and CRC32 is fast enough.  Changing the chunk
+ * size changes every checksum, so don't.
+ *
+ * Run "identify FILE..." from the command line to get checksums for
+ * KNOWN_BUILDS.
+ */
+class BuildIdentifier {
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    static class KnownBuild {
+        public final String name;
+        public final String executableChecksum;
+        // Archives known to go with this executable, or empty if we
+        // don't know.
+        public final String[] archiveChecksums;
+        // Where each of PatchWorker.executablePatches is, in order, or
+        // null if this build isn't supported.
+        public final long[] patchOffsets;
+        public final String unsupportedReason;
+
+        private KnownBuild(String name, String executableChecksum,
+                           String[] archiveChecksums, long[] patchOffsets,
+                           String unsupportedReason) {
+            this.name = name;
+            this.executableChecksum = executableChecksum;
+            this.archiveChecksums = archiveChecksums;
+            this.patchOffsets = patchOffsets;
+            this.unsupportedReason = unsupportedReason;
+        }
+
+        public static KnownBuild supported(String name,
+                                           String executableChecksum,
+                                           String[] archiveChecksums,
+                                           long... patchOffsets) {
+            return new KnownBuild(name, executableChecksum, archiveChecksums,
+                                  patchOffsets, null);
+        }
+
+        public static KnownBuild unsupported(String name,
+                                             String executableChecksum,
+                                             String reason) {
+            return new KnownBuild(name, executableChecksum, new String[0],
+                                  null, reason);
+        }
+
+        public boolean isKnownArchive(String checksum) {
+            return Arrays.asList(archiveChecksums).contains(checksum);
+        }
+    }
+
+    // Builds we have checksums for.  Executables that aren't listed
+    // here are still patched if PatchWorker can find every patch site
+    // in them.  Empty until someone runs identify on a real release;
+    // until then only the executable gets checksummed.
+    static final KnownBuild[] KNOWN_BUILDS = {
+    };
+
+    private BuildIdentifier() {
+    }
+
+    public static String checksum(ByteBuffer contents) {
+        ByteBuffer buffer = contents.duplicate();
+        int start = buffer.position();
+        int length = buffer.remaining();
+        int numChunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long[] chunkCRCs = IntStream.range(0, numChunks).parallel()
+            .mapToLong(i -> {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.position(start + i * CHUNK_SIZE);
+                chunk.limit(start + Math.min(length, (i + 1) * CHUNK_SIZE));
+                CRC32 crc = new CRC32();
+                crc.update(chunk);
+                return crc.getValue();
+            })
+            .toArray();
+        ByteBuffer crcBytes = ByteBuffer.allocate(chunkCRCs.length * 8);
+        crcBytes.asLongBuffer().put(chunkCRCs);
+        CRC32 crc = new CRC32();
+        crc.update(crcBytes);
+        return String.format("%x:%08x", length, crc.getValue());
+    }
+
+    /**
+     * Checksum a file by mapping it.  Don't use this on files we might
+     * replace; see ExecutablePatchPlan.readFile.
+     */
+    public static String checksum(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new RuntimeException(String.format(
+                    "%s is too large to checksum: %d bytes", file,
+                    channel.size()));
+            }
+            return checksum(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                        channel.size()));
+        }
+    }
+
+    /**
+     * @return True if any known build lists the archives that go with
+     *         it, which is the only reason to checksum an archive.
+     */
+    public static boolean hasArchiveChecksums() {
+        for (KnownBuild build : KNOWN_BUILDS) {
+            if (build.archiveChecksums.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The build whose executable has this checksum, or null.
+     */
+    public static KnownBuild findBuild(String executableChecksum) {
+        for (KnownBuild build : KNOWN_BUILDS) {
+            if (build.executableChecksum.equals(executableChecksum)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Command line entry point: print the checksum of each file, and
+     * the build it's the executable of, if any.
+     * @return Process exit status.
+     */
+    static int runCommand(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: identify FILE...");
+            return 2;
+        }
+        for (String path : args) {
+            String checksum = checksum(new File(path));
+            KnownBuild build = findBuild(checksum);
+            System.out.println(String.format(
+                "%s  %s%s", checksum, path,
+                build == null ? "" : "  (" + build.name + ")"));
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Unpacks entries from a CPR archive into a directory tree, several at
+ * a time.  Entries are written straight from the archive's mapping
+ * (see CPRFile.transferTo), so their contents never pass through the
+ * heap.
+ */
+class CPRExtractor {
+    private static final Logger logger =
+        LoggerFactory.getLogger(CPRExtractor.class);
+
+    private final CPRFile cprFile;
+
+    public CPRExtractor(CPRFile cprFile) {
+        this.cprFile = cprFile;
+    }
+
+    /**
+     * Turn a glob such as <code>images\*.bmp</code> into a regex
+     * matching archive entry names.  Matching is case-insensitive, like
+     * the Windows file system these names come from.  <code>*</code>
+     * and <code>?</code> don't match across a backslash;
+     * <code>**</code> does.  Forward slashes in the glob are treated as
+     * backslashes.
+     */
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^\\\\]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^\\\\]");
+            } else if (c == '/' || c == '\\') {
+                regex.append("\\\\");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(),
+                               Pattern.CASE_INSENSITIVE
+                               | Pattern.UNICODE_CASE);
+    }
+
+    private static Path resolveEntryPath(Path outputDirectory, String name) {
+        Path path = outputDirectory;
+        for (String component : name.split("\\\\")) {
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            if (component.equals("..") || component.contains("/")
+                || component.contains(":")) {
+                throw new RuntimeException(String.format(
+                    "refusing to extract suspicious entry name \"%s\"",
+                    name));
+            }
+            path = path.resolve(component);
+        }
+        if (path.equals(outputDirectory)) {
+            throw new RuntimeException(String.format(
+                "entry name \"%s\" has no file name", name));
+        }
+        return path;
+    }
+
+    private void extractEntry(Path outputDirectory, String name)
+            throws IOException {
+        Path outputPath = resolveEntryPath(outputDirectory, name);
+        Files.createDirectories(outputPath.getParent());
+        logger.debug("extracting {} to {}", name, outputPath);
+        try (FileChannel output = FileChannel.open(
+                 outputPath, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING,
+                 StandardOpenOption.WRITE)) {
+            cprFile.transferTo(name, output);
+        }
+    }
+
+    /**
+     * Extract entries into a directory.
+     * @param outputDirectory Root of the tree to write.  Backslashes in
+     *                        entry names become subdirectories.
+     * @param glob Only extract entries matching this glob, or all
+     *             entries if null.
+     * @param numThreads How many entries to write at once.
+     * @return Number of entries extracted.
+     * @throws IOException
+     */
+    public int extract(File outputDirectory, String glob, int numThreads)
+            throws IOException {
+        Pattern pattern = glob == null ? null : compileGlob(glob);
+        Path outputPath = outputDirectory.toPath();
+        Files.createDirectories(outputPath);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (String name : cprFile.getNames()) {
+                if (pattern == null || pattern.matcher(name).matches()) {
+                    futures.add(executor.submit(() -> {
+                        extractEntry(outputPath, name);
+                        return null;
+                    }));
+                }
+            }
+            RuntimeException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new RuntimeException(
+                            "failed to extract some entries", e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("extracted {} entries to {}", futures.size(),
+                    outputDirectory);
+        return futures.size();
+    }
+
+    /**
+     * Command line entry point, invoked via App as
+     * <code>extract [-c] ARCHIVE OUTPUT_DIRECTORY [GLOB]</code>.  With
+     * -c, the archive's index is kept in a CPRIndexCache file next to
+     * it, which speeds up extracting from it again.
+     * @return Process exit status.
+     */
+    static int runCommand(String[] args) throws IOException {
+        boolean useIndexCache = args.length > 0 && args[0].equals("-c");
+        int first = useIndexCache ? 1 : 0;
+        if (args.length - first < 2 || args.length - first > 3) {
+            System.err.println(
+                "usage: extract [-c] ARCHIVE OUTPUT_DIRECTORY [GLOB]");
+            return 2;
+        }
+        CPRExtractor extractor = new CPRExtractor(
+            new CPRFile(new File(args[first]), useIndexCache));
+        extractor.extract(new File(args[first + 1]),
+                          args.length - first > 2 ? args[first + 2] : null,
+                          Runtime.getRuntime().availableProcessors());
+        return 0;
+    }
+}
@@ -23,19 +23,65 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-class CPRFile {
+/**
+ * Read-only view of an Ascaron CPR archive.
+ *
+ * Safe to share between threads once constructed.  The archive is
+ * mapped once and every read works on its own view of that mapping, so
+ * there's no file position for readers to fight over.  The only
+ * mutable state is the header walk done by lazy mode, which is
+ * synchronized; lookups of names it has already walked past don't
+ * take the lock.
+ */
+class CPRFile implements Closeable {
     // We use this for both file names as well as text files extracted
     // from the archive.
     public static final String CHARSET = "ISO-8859-1";
 
+    private static final Charset charset = Charset.forName(CHARSET);
+
     private static final Logger logger = LoggerFactory.getLogger(CPRFile.class);
 
-    private final RandomAccessFile fp;
+    // The whole archive, mapped read-only and in little endian order.
+    // Nothing moves this buffer's position after it's mapped: use
+    // absolute gets, or work on a duplicate().
+    private final ByteBuffer archive;
+    // Cursor for walking the header chain.  Only touched from the
+    // constructor, or with this object's lock held.
+    private final ByteBuffer headers;
     private final HashMap<String, IndexEntry> index = new HashMap<>();
+    // In lazy mode, where each name we've walked past lives in the header
+    // chain.  IndexEntry objects are only made for names actually looked
+    // up, and index stays empty.
+    private final boolean lazy;
+    private final ConcurrentHashMap<String, Integer> entryPositions =
+        new ConcurrentHashMap<>();
+    // How far we've got walking the header chain.
+    private long nextHeader = 0x20;
+    private int entriesLeftInBlock;
+    private int nextEntryPosition;
+    private int currentEntryPosition;
+    private boolean walkedAllHeaders;
+    // Scratch space for decoding names so we don't allocate a buffer
+    // for every string we read.
+    private byte[] stringBuffer = new byte[256];
+    // How much of the archive (or index cache) we've read to build the
+    // index.
+    private long indexBytesRead;
 
-    private class IndexEntry {
+    static class IndexEntry {
         // long based on type of RandomAccessFile.seek, but basically
         // a pointless distinction for our little program.
         public final long offset;
@@ -48,108 +94,306 @@ class CPRFile {
     }
 
     public CPRFile(File file) throws IOException {
-        // TODO: "fp" is a shit name
-        fp = new RandomAccessFile(file, "r");
+        this(file, false);
+    }
+
+    /**
+     * @param file The archive.
+     * @param useIndexCache Whether to use (and update) the sidecar index
+     *                      cache kept by CPRIndexCache.
+     * @throws IOException
+     */
+    public CPRFile(File file, boolean useIndexCache) throws IOException {
+        this(file, useIndexCache, false);
+    }
+
+    /**
+     * @param file The archive.
+     * @param useIndexCache Whether to use (and update) the sidecar index
+     *                      cache kept by CPRIndexCache.  Ignored in lazy
+     *                      mode.
+     * @param lazy If true, don't read the index up front.  Instead each
+     *             lookup walks the header chain only as far as the name
+     *             it's after, remembering where the names it passed
+     *             live for later lookups.  Good when you only want a
+     *             few entries out of a big archive.
+     * @throws IOException
+     */
+    public CPRFile(File file, boolean useIndexCache, boolean lazy)
+            throws IOException {
+        this.lazy = lazy;
+        // The mapping outlives the channel, so we don't need to keep
+        // the file open.
+        try (FileChannel channel = FileChannel.open(
+                 file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // ByteBuffer can only address 2 GiB.  The archive that ships
+            // with the game is nowhere near that.
+            if (size > Integer.MAX_VALUE) {
+                throw new RuntimeException(String.format(
+                    "archive is too large to map: %d bytes", size));
+            }
+            archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        archive.order(ByteOrder.LITTLE_ENDIAN);
+        headers = archive.duplicate();
+        headers.order(ByteOrder.LITTLE_ENDIAN);
         String signature = readNullTerminatedString();
         if (!signature.equals("ASCARON_ARCHIVE V0.9")) {
             throw new RuntimeException("invalid signature");
         }
-        long nextHeader = 0x20;
-        while (true) {
-            logger.debug("moving to header at {}", nextHeader);
-            fp.seek(nextHeader);
-            long headerLength;
-            try {
-                headerLength = readLittleEndianInt();
-            } catch (EOFException e) {
-                logger.debug("hit EOF trying to read new header, as expected");
-                break;
+        if (lazy) {
+            return;
+        }
+        CPRIndexCache indexCache =
+            useIndexCache ? new CPRIndexCache(file) : null;
+        if (indexCache != null && indexCache.load(archive, index)) {
+            indexBytesRead = indexCache.getCacheFile().length();
+            return;
+        }
+        readHeaders();
+        if (indexCache != null) {
+            indexCache.save(archive, index);
+        }
+    }
+
+    private void readHeaders() {
+        String name;
+        while ((name = readNextEntryName()) != null) {
+            IndexEntry indexEntry = readIndexEntry(currentEntryPosition);
+            logger.debug("read file={} offset={} length={}", name,
+                         indexEntry.offset, indexEntry.length);
+            // Same rule as lazy mode: see walkUntil.
+            index.putIfAbsent(name, indexEntry);
+        }
+    }
+
+    /**
+     * Move on to the next block in the header chain.
+     * @return False if there are no more blocks.
+     */
+    private boolean readNextBlockHeader() {
+        logger.debug("moving to header at {}", nextHeader);
+        // We mostly expect that a proper .CPR file will have a
+        // header that points directly to EOF.
+        if (nextHeader >= headers.limit()) {
+            logger.debug("hit EOF trying to read new header, as expected");
+            walkedAllHeaders = true;
+            return false;
+        }
+        headers.position((int) nextHeader);
+        long headerLength = readLittleEndianInt();
+        // This is something like length of the header minus the first
+        // four bytes?  We don't appear to need it right now.
+        skipBytes(4);
+        int numFiles = readLittleEndianInt();
+        long nextHeaderOffset = readLittleEndianInt();
+        logger.debug("read nextHeaderOffset {}", nextHeaderOffset);
+        entriesLeftInBlock = Math.max(0, numFiles);
+        nextEntryPosition = headers.position();
+        indexBytesRead += nextEntryPosition - nextHeader;
+        nextHeader = nextHeader + headerLength + nextHeaderOffset;
+        return true;
+    }
+
+    /**
+     * Read the name of the next entry in the header chain, moving on to
+     * later blocks as needed.  Sets currentEntryPosition to where the
+     * entry starts.
+     * @return The name, or null if we've reached the end of the chain.
+     */
+    private String readNextEntryName() {
+        while (entriesLeftInBlock == 0) {
+            if (walkedAllHeaders || !readNextBlockHeader()) {
+                return null;
+            }
+        }
+        headers.position(nextEntryPosition);
+        currentEntryPosition = nextEntryPosition;
+        // Offset, length, and the field we don't understand (see
+        // readIndexEntry).
+        skipBytes(12);
+        String name = readNullTerminatedString();
+        nextEntryPosition = headers.position();
+        entriesLeftInBlock--;
+        indexBytesRead += nextEntryPosition - currentEntryPosition;
+        return name;
+    }
+
+    /**
+     * Walk the header chain until we've seen path, or run out of chain.
+     */
+    private IndexEntry findEntryLazily(String path) {
+        Integer position = entryPositions.get(path);
+        if (position == null) {
+            position = walkUntil(path);
+        }
+        return position == null ? null : readIndexEntry(position);
+    }
+
+    /**
+     * @return Where path's entry starts, or null if it isn't in the
+     *         archive.
+     */
+    private synchronized Integer walkUntil(String path) {
+        // Someone else may have walked past it while we waited.
+        Integer position = entryPositions.get(path);
+        while (position == null) {
+            String name = readNextEntryName();
+            if (name == null) {
+                return null;
             }
-            // This is something like length of the header minus the first
-            // four bytes?  We don't appear to need it right now.
-            skipBytes(4);
-            long numFiles = readLittleEndianInt();
-            long nextHeaderOffset = readLittleEndianInt();
-            logger.debug("read nextHeaderOffset {}", nextHeaderOffset);
-            for (int i = 0; i < numFiles; i++) {
-                readIndexEntry();
+            // Should an archive ever repeat a name, the first one wins,
+            // in both modes.  Lazy mode can't do anything else without
+            // walking the whole chain.
+            entryPositions.putIfAbsent(name, currentEntryPosition);
+            if (name.equals(path)) {
+                position = entryPositions.get(name);
             }
-            nextHeader = nextHeader + headerLength + nextHeaderOffset;
         }
+        return position;
     }
 
-    private void skipBytes(int n) throws IOException {
-        int numSkipped = fp.skipBytes(n);
-        if (numSkipped != n) {
+    private void skipBytes(int n) {
+        int remaining = headers.remaining();
+        if (remaining < n) {
             throw new RuntimeException(String.format(
-                "expected to skip %d byte(s) but only skipped %d",n,
-                numSkipped));
+                "expected to skip %d byte(s) but only skipped %d", n,
+                remaining));
         }
+        headers.position(headers.position() + n);
     }
 
-    private void readIndexEntry() throws IOException {
-        int offset = readLittleEndianInt();
-        int length = readLittleEndianInt();
-        if (offset <= 0 || length <= 0) {
+    /**
+     * Decode the entry that starts at position in the header chain.
+     * Doesn't move archive's position.
+     */
+    private IndexEntry readIndexEntry(int position) {
+        int offset = archive.getInt(position);
+        int length = archive.getInt(position + 4);
+        if (offset <= 0 || length <= 0
+            || (long) offset + length > archive.limit()) {
             throw new RuntimeException("invalid offset and/or length");
         }
-        // Don't know what this is, I think it's always 1?
-        skipBytes(4);
-        String name = readNullTerminatedString();
-        logger.debug("read file={} offset={} length={}", name, offset, length);
-        index.put(name, new IndexEntry(offset, length));
-    }
-
-    private int readLittleEndianInt() throws IOException {
-        byte bytes[] = new byte[4];
-        int numRead = fp.read(bytes);
-        // Other functions don't throw EOFException (they probably should).
-        // This one is a special case, since we mostly expect that a
-        // proper .CPR file will have a header that points directly to EOF.
-        if (numRead == -1) {
-            throw new EOFException();
-        } else if (numRead != 4) {
+        // Don't know what the next four bytes are, I think they're
+        // always 1?
+        return new IndexEntry(offset, length);
+    }
+
+    private int readLittleEndianInt() {
+        try {
+            return headers.getInt();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException(String.format(
-                "expected to read 4 bytes but read %d instead", numRead));
+                "expected to read 4 bytes but read %d instead",
+                headers.remaining()));
         }
-        // b & 0xff is necessary before shifting as it triggers a
-        // promotion to int with sign extension but then clears all
-        // but the low bits.
-        return ((bytes[3] & 0xff) << 24) | ((bytes[2] & 0xff) << 16)
-               | ((bytes[1] & 0xff) << 8) | (bytes[0] & 0xff);
     }
 
-    private String readNullTerminatedString() throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        while (true) {
-            byte b = fp.readByte();
-            if (b == 0) {
-                break;
-            }
-            buffer.write(b);
+    private String readNullTerminatedString() {
+        int start = headers.position();
+        int end = start;
+        int limit = headers.limit();
+        while (end < limit && headers.get(end) != 0) {
+            end++;
+        }
+        if (end == limit) {
+            throw new RuntimeException(String.format(
+                "unterminated string at offset %d", start));
         }
+        int length = end - start;
+        if (length > stringBuffer.length) {
+            stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+        }
+        headers.get(stringBuffer, 0, length);
+        // Skip the terminating null.
+        headers.get();
         // They actually use ISO-8859-1 in at least one file name.
-        return buffer.toString(CHARSET);
+        return new String(stringBuffer, 0, length, charset);
     }
 
-    public InputStream getInputStream(String path) throws IOException {
-        IndexEntry indexEntry = index.get(path);
+    private IndexEntry getIndexEntry(String path) {
+        IndexEntry indexEntry =
+            lazy ? findEntryLazily(path) : index.get(path);
         if (indexEntry == null) {
             throw new RuntimeException(String.format(
                 "can't find file \"%s\"", path));
         }
-        fp.seek(indexEntry.offset);
-        byte data[] = new byte[indexEntry.length];
-        int numBytes = fp.read(data);
-        if (numBytes != indexEntry.length) {
-            throw new RuntimeException(String.format(
-                "expected to read %d byte(s) but read %d instead",
-                indexEntry.length, numBytes));
+        return indexEntry;
+    }
+
+    /**
+     * Get an entry's contents without copying them out of the archive.
+     * @param path Name of the entry within the archive.
+     * @return A read-only buffer over just this entry, positioned at
+     *         its start.  Each call returns an independent buffer.
+     */
+    public ByteBuffer getByteBuffer(String path) {
+        IndexEntry indexEntry = getIndexEntry(path);
+        ByteBuffer entryBuffer = archive.asReadOnlyBuffer();
+        entryBuffer.limit((int) indexEntry.offset + indexEntry.length);
+        entryBuffer.position((int) indexEntry.offset);
+        return entryBuffer.slice();
+    }
+
+    /**
+     * In lazy mode this has to walk the rest of the header chain.
+     */
+    public Set<String> getNames() {
+        if (!lazy) {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+        synchronized (this) {
+            String name;
+            while ((name = readNextEntryName()) != null) {
+                entryPositions.putIfAbsent(name, currentEntryPosition);
+            }
+        }
+        return Collections.unmodifiableSet(entryPositions.keySet());
+    }
+
+    /**
+     * @return Bytes read to build the index so far.  Unless this is in
+     *         lazy mode, that all happens when the archive is opened.
+     */
+    public synchronized long getIndexBytesRead() {
+        return indexBytesRead;
+    }
+
+    public int getLength(String path) {
+        return getIndexEntry(path).length;
+    }
+
+    /**
+     * Copy an entry to a channel without bringing it onto the heap.
+     */
+    public void transferTo(String path, WritableByteChannel target)
+            throws IOException {
+        // This writes straight from the mapping rather than using
+        // FileChannel.transferTo.  A shared FileChannel is closed for
+        // everyone as soon as one thread using it is interrupted, which
+        // is exactly what ExecutorService.shutdownNow does.
+        ByteBuffer entryBuffer = getByteBuffer(path);
+        while (entryBuffer.hasRemaining()) {
+            target.write(entryBuffer);
         }
-        return new ByteArrayInputStream(data);
+    }
+
+    public InputStream getInputStream(String path) throws IOException {
+        return new ByteBufferInputStream(getByteBuffer(path));
     }
 
     public Reader getReader (String path) throws IOException {
         return new InputStreamReader(getInputStream(path), CHARSET);
     }
+
+    /**
+     * Does nothing: the file was closed as soon as it was mapped, and
+     * Java gives us no way to unmap it other than letting the mapping
+     * be garbage collected.  Buffers already returned by getByteBuffer
+     * stay usable.
+     */
+    @Override
+    public void close() throws IOException {
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file that remembers a CPR archive's index between runs so
+ * CPRFile doesn't have to walk the header chain every time.  It's only
+ * used when asked for, since it means writing ARCHIVE.idx next to the
+ * archive, usually in the game directory.
+ *
+ * The cache is keyed on the archive's size, modification time, and a
+ * CRC of its first and last {@value #FINGERPRINT_SPAN} bytes.  Layout
+ * is all little endian:
+ *
+ * <pre>
+ * 8 bytes  magic "P3WSIDX\0"
+ * int      format version
+ * long     archive size
+ * long     archive modification time
+ * long     archive fingerprint
+ * int      number of entries
+ * entries: int offset, int length, short name length, name bytes
+ * long     CRC32 of everything above
+ * </pre>
+ */
+class CPRIndexCache {
+    private static final Logger logger =
+        LoggerFactory.getLogger(CPRIndexCache.class);
+
+    private static final byte[] MAGIC = {
+        'P', '3', 'W', 'S', 'I', 'D', 'X', 0
+    };
+    // 2: repeated names resolve to their first entry, not their last.
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = MAGIC.length + 4 + 8 + 8 + 8 + 4;
+    private static final int FINGERPRINT_SPAN = 64 * 1024;
+    private static final Charset charset = Charset.forName(CPRFile.CHARSET);
+
+    private final File archiveFile;
+    private final File cacheFile;
+
+    public CPRIndexCache(File archiveFile) {
+        this.archiveFile = archiveFile;
+        cacheFile = new File(archiveFile.getPath() + ".idx");
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    static long fingerprint(ByteBuffer archive) {
+        CRC32 crc = new CRC32();
+        ByteBuffer span = archive.duplicate();
+        int limit = span.limit();
+        span.position(0);
+        span.limit(Math.min(limit, FINGERPRINT_SPAN));
+        crc.update(span);
+        if (limit > FINGERPRINT_SPAN) {
+            span.limit(limit);
+            span.position(Math.max(FINGERPRINT_SPAN, limit - FINGERPRINT_SPAN));
+            crc.update(span);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Fill in an index from the cache file.
+     * @param archive The mapped archive, used to check the cache is
+     *                still valid.
+     * @param index Where to put the cached entries.  Left empty if the
+     *              cache can't be used.
+     * @return True if the cache was valid and index was filled in.
+     * @throws IOException
+     */
+    public boolean load(ByteBuffer archive,
+                        Map<String, CPRFile.IndexEntry> index)
+            throws IOException {
+        ByteBuffer cache;
+        // Read rather than mapped, since save may need to replace the
+        // file, which Windows won't allow while a mapping is alive.
+        try {
+            cache = ExecutablePatchPlan.readFile(cacheFile);
+        } catch (NoSuchFileException e) {
+            logger.debug("no index cache at {}", cacheFile);
+            return false;
+        }
+        cache.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            String problem = checkCache(cache, archive);
+            if (problem == null) {
+                readEntries(cache, index);
+                logger.debug("loaded {} entries from index cache {}",
+                             index.size(), cacheFile);
+                return true;
+            }
+            logger.debug("not using index cache {}: {}", cacheFile, problem);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.debug("not using index cache {}: corrupt", cacheFile);
+        }
+        index.clear();
+        return false;
+    }
+
+    private String checkCache(ByteBuffer cache, ByteBuffer archive) {
+        if (cache.limit() < HEADER_LENGTH + 8) {
+            return "truncated";
+        }
+        byte[] magic = new byte[MAGIC.length];
+        cache.get(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                return "bad magic";
+            }
+        }
+        if (cache.getInt() != VERSION) {
+            return "unknown version";
+        }
+        if (cache.getLong() != archive.limit()
+            || cache.getLong() != archiveFile.lastModified()) {
+            return "archive size or modification time changed";
+        }
+        if (cache.getLong() != fingerprint(archive)) {
+            return "archive contents changed";
+        }
+        ByteBuffer body = cache.duplicate();
+        body.position(0);
+        body.limit(cache.limit() - 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != cache.getLong(cache.limit() - 8)) {
+            return "checksum mismatch";
+        }
+        return null;
+    }
+
+    private void readEntries(ByteBuffer cache,
+                             Map<String, CPRFile.IndexEntry> index) {
+        int numEntries = cache.getInt();
+        byte[] name = new byte[256];
+        for (int i = 0; i < numEntries; i++) {
+            int offset = cache.getInt();
+            int length = cache.getInt();
+            int nameLength = cache.getShort() & 0xffff;
+            if (nameLength > name.length) {
+                name = new byte[nameLength];
+            }
+            cache.get(name, 0, nameLength);
+            index.put(new String(name, 0, nameLength, charset),
+                      new CPRFile.IndexEntry(offset, length));
+        }
+    }
+
+    /**
+     * Write the index out to the cache file.  Failing to write the
+     * cache isn't fatal, it just means we'll walk the archive again
+     * next time, so problems are logged rather than thrown.
+     */
+    public void save(ByteBuffer archive,
+                     Map<String, CPRFile.IndexEntry> index) {
+        int length = HEADER_LENGTH + 8;
+        for (String name : index.keySet()) {
+            length += 4 + 4 + 2 + name.length();
+        }
+        ByteBuffer cache = ByteBuffer.allocate(length);
+        cache.order(ByteOrder.LITTLE_ENDIAN);
+        cache.put(MAGIC);
+        cache.putInt(VERSION);
+        cache.putLong(archive.limit());
+        cache.putLong(archiveFile.lastModified());
+        cache.putLong(fingerprint(archive));
+        cache.putInt(index.size());
+        for (Map.Entry<String, CPRFile.IndexEntry> entry : index.entrySet()) {
+            byte[] name = entry.getKey().getBytes(charset);
+            cache.putInt((int) entry.getValue().offset);
+            cache.putInt(entry.getValue().length);
+            cache.putShort((short) name.length);
+            cache.put(name);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(cache.array(), 0, cache.position());
+        cache.putLong(crc.getValue());
+        cache.flip();
+        Path cachePath = cacheFile.toPath();
+        Path tempPath = cachePath.resolveSibling(cacheFile.getName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(
+                     tempPath, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+                while (cache.hasRemaining()) {
+                    channel.write(cache);
+                }
+            }
+            Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("wrote index cache {}", cacheFile);
+        } catch (IOException e) {
+            logger.warn("failed to write index cache {}: {}", cacheFile,
+                        e.toString());
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignored) {
+                // Nothing more we can do.
+            }
+        }
+    }
+}
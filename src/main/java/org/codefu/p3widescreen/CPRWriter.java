@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Writes an archive in the format CPRFile reads.
+ *
+ * Entries are written in blocks, each a header listing the entries'
+ * names, offsets, and lengths followed by their data.  Since the header
+ * has to come first, a block's entries are only remembered until the
+ * block is full, and their data is copied straight from where it lives
+ * then: other archives and loose files are copied with transferTo, so
+ * nothing is read onto the heap that wasn't already there.
+ *
+ * The archive is written to a temporary file next to its destination
+ * and only moved into place by finish().  Closing without finishing
+ * throws the partial archive away.
+ */
+class CPRWriter implements Closeable {
+    private static final Logger logger =
+        LoggerFactory.getLogger(CPRWriter.class);
+
+    static final int DEFAULT_ENTRIES_PER_BLOCK = 500;
+    // CPRFile starts reading headers here.
+    private static final int SIGNATURE_LENGTH = 0x20;
+    // Header length, header length - 4, number of entries, data length.
+    private static final int BLOCK_HEADER_LENGTH = 16;
+    // Offset, length, and the field CPRFile skips, which is always 1 as
+    // far as we know.
+    private static final int ENTRY_HEADER_LENGTH = 12;
+
+    private static final Charset charset = Charset.forName(CPRFile.CHARSET);
+
+    private final File file;
+    private final Path tempPath;
+    private final FileChannel channel;
+    private final int entriesPerBlock;
+    private final List<PendingEntry> block = new ArrayList<>();
+    private final CharsetEncoder encoder = charset.newEncoder();
+    private final Set<String> names = new HashSet<>();
+    private int numEntries;
+    private boolean finished;
+
+    @FunctionalInterface
+    private interface EntryData {
+        void transferTo(WritableByteChannel target) throws IOException;
+    }
+
+    private static class PendingEntry {
+        final String name;
+        final byte[] encodedName;
+        final int length;
+        final EntryData data;
+
+        PendingEntry(String name, byte[] encodedName, int length,
+                     EntryData data) {
+            this.name = name;
+            this.encodedName = encodedName;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    public CPRWriter(File file) throws IOException {
+        this(file, DEFAULT_ENTRIES_PER_BLOCK);
+    }
+
+    /**
+     * @param file Where the archive goes.  Nothing there is touched
+     *             until finish().
+     * @param entriesPerBlock How many entries to list in each header.
+     */
+    public CPRWriter(File file, int entriesPerBlock) throws IOException {
+        if (entriesPerBlock < 1) {
+            throw new IllegalArgumentException(
+                "need at least one entry per block");
+        }
+        this.file = file;
+        this.entriesPerBlock = entriesPerBlock;
+        tempPath = file.toPath().resolveSibling(file.getName() + ".tmp");
+        channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                   StandardOpenOption.WRITE);
+        ByteBuffer signature = ByteBuffer.allocate(SIGNATURE_LENGTH);
+        signature.put("ASCARON_ARCHIVE V0.9".getBytes(charset));
+        signature.clear();
+        writeFully(signature);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void add(String name, long length, EntryData data)
+            throws IOException {
+        if (finished) {
+            throw new IllegalStateException("archive already finished");
+        }
+        if (name.isEmpty() || name.indexOf('\0') >= 0
+            || !encoder.canEncode(name)) {
+            throw new RuntimeException(String.format(
+                "can't store entry name \"%s\" in an archive", name));
+        }
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            // CPRFile rejects empty entries as corrupt.
+            throw new RuntimeException(String.format(
+                "can't store %d byte(s) as entry \"%s\"", length, name));
+        }
+        if (!names.add(name)) {
+            throw new RuntimeException(String.format(
+                "entry \"%s\" added twice", name));
+        }
+        block.add(new PendingEntry(name, name.getBytes(charset), (int) length,
+                                   data));
+        if (block.size() >= entriesPerBlock) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Add an entry from memory.  The buffer's remaining bytes are
+     * written when the block is, so don't change them before then.
+     */
+    public void add(String name, ByteBuffer data) throws IOException {
+        ByteBuffer entryData = data.duplicate();
+        add(name, entryData.remaining(), target -> {
+            while (entryData.hasRemaining()) {
+                target.write(entryData);
+            }
+        });
+    }
+
+    /**
+     * Add a loose file as an entry.
+     */
+    public void add(String name, File entryFile) throws IOException {
+        add(name, entryFile.length(),
+            target -> transferFile(entryFile, target));
+    }
+
+    /**
+     * Copy a whole file to a channel with FileChannel.transferTo.  If
+     * the file shrinks part way through, this copies what there is;
+     * callers should check the amount written.
+     */
+    static void transferFile(File source, WritableByteChannel target)
+            throws IOException {
+        try (FileChannel input = FileChannel.open(source.toPath(),
+                                                  StandardOpenOption.READ)) {
+            long position = 0;
+            long size = input.size();
+            while (position < size) {
+                long numTransferred =
+                    input.transferTo(position, size - position, target);
+                if (numTransferred <= 0) {
+                    break;
+                }
+                position += numTransferred;
+            }
+        }
+    }
+
+    /**
+     * Copy an entry from another archive.
+     */
+    public void add(String name, CPRFile archive, String entryName)
+            throws IOException {
+        add(name, archive.getLength(entryName),
+            target -> archive.transferTo(entryName, target));
+    }
+
+    /**
+     * Copy whatever the overlay resolved an asset to.
+     */
+    public void add(String name, AssetOverlay.Asset asset)
+            throws IOException {
+        add(name, asset.getLength(), asset::transferTo);
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.isEmpty()) {
+            return;
+        }
+        int headerLength = BLOCK_HEADER_LENGTH;
+        long dataLength = 0;
+        for (PendingEntry entry : block) {
+            headerLength += ENTRY_HEADER_LENGTH + entry.encodedName.length + 1;
+            dataLength += entry.length;
+        }
+        long dataPosition = channel.position() + headerLength;
+        if (dataPosition + dataLength > Integer.MAX_VALUE) {
+            throw new RuntimeException(
+                "archive would be too large for CPRFile to read");
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(headerLength);
+        header.putInt(headerLength - 4);
+        header.putInt(block.size());
+        header.putInt((int) dataLength);
+        for (PendingEntry entry : block) {
+            header.putInt((int) dataPosition);
+            header.putInt(entry.length);
+            header.putInt(1);
+            header.put(entry.encodedName);
+            header.put((byte) 0);
+            dataPosition += entry.length;
+        }
+        header.flip();
+        writeFully(header);
+        for (PendingEntry entry : block) {
+            long start = channel.position();
+            entry.data.transferTo(channel);
+            long numWritten = channel.position() - start;
+            if (numWritten != entry.length) {
+                throw new RuntimeException(String.format(
+                    "expected %d byte(s) for entry \"%s\" but got %d",
+                    entry.length, entry.name, numWritten));
+            }
+        }
+        logger.debug("wrote block of {} entries, {} data byte(s)",
+                     block.size(), dataLength);
+        numEntries += block.size();
+        block.clear();
+    }
+
+    /**
+     * Write out any remaining entries and move the archive into place,
+     * replacing whatever was there.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        channel.force(false);
+        channel.close();
+        Files.move(tempPath, file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        logger.info("wrote {} entries to {}", numEntries, file);
+    }
+
+    /**
+     * Throw the archive away, unless finish() was called.
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        channel.close();
+        Files.deleteIfExists(tempPath);
+    }
+
+    /**
+     * Command line entry point, invoked via App as
+     * <code>repack [-a] GAME_DIRECTORY OUTPUT_ARCHIVE</code>.  Writes
+     * the patched images and scripts into one override archive, or
+     * with -a, writes everything the game would load: the data archive
+     * with the loose files in place of the entries they override.
+     * @return Process exit status.
+     */
+    static int runCommand(String[] args) throws IOException {
+        boolean all = args.length > 0 && args[0].equals("-a");
+        int first = all ? 1 : 0;
+        if (args.length - first != 2) {
+            System.err.println(
+                "usage: repack [-a] GAME_DIRECTORY OUTPUT_ARCHIVE");
+            return 2;
+        }
+        File gameDirectory = new File(args[first]);
+        AssetOverlay overlay;
+        if (all) {
+            overlay = AssetOverlay.forGame(gameDirectory);
+        } else {
+            overlay = new AssetOverlay();
+            overlay.addDirectory(gameDirectory, "images", "scripts");
+        }
+        // Sorted so repacking the same files gives the same archive.
+        Map<String, AssetOverlay.Asset> assets = new TreeMap<>();
+        for (String name : overlay.getNames()) {
+            assets.put(name, overlay.find(name));
+        }
+        try (CPRWriter writer = new CPRWriter(new File(args[first + 1]))) {
+            for (AssetOverlay.Asset asset : assets.values()) {
+                writer.add(asset.getName(), asset);
+            }
+            writer.finish();
+        }
+        return 0;
+    }
+}
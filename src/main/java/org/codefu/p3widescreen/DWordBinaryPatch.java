@@ -22,8 +22,6 @@ package org.codefu.p3widescreen;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -31,12 +29,14 @@ class DWordBinaryPatch {
     private static final int FILL_IN_DWORD = -1;
     private Logger logger = LoggerFactory.getLogger(DWordBinaryPatch.class);
     private final long offset;
+    private final String patternStr;
     private final int patchLength;
     private final int numValuesToFillIn;
     private final int pattern[];
 
     public DWordBinaryPatch(long offset, String patternStr) {
         this.offset = offset;
+        this.patternStr = patternStr;
         String[] patternStrs = patternStr.trim().split("\\s+");
         int patchLength = 0;
         int numValuesToFillIn = 0;
@@ -55,50 +55,87 @@ class DWordBinaryPatch {
         this.numValuesToFillIn = numValuesToFillIn;
     }
 
-    private void patch(RandomAccessFile file, boolean testOnly,
-                       int... patchValues)
-            throws IOException {
-        byte bytes[] = new byte[patchLength];
-        file.seek(offset);
-        int numRead = file.read(bytes);
-        if (numRead != patchLength) {
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return This same patch, but applied at a different offset.
+     */
+    public DWordBinaryPatch atOffset(long newOffset) {
+        return new DWordBinaryPatch(newOffset, patternStr);
+    }
+
+    /**
+     * @return The pattern expanded to one element per byte: the
+     *         unsigned byte value to expect, or -1 for each of the
+     *         four bytes of a value to fill in.
+     */
+    public int[] getBytePattern() {
+        int[] bytePattern = new int[patchLength];
+        int pos = 0;
+        for (int patternByte : pattern) {
+            if (patternByte == FILL_IN_DWORD) {
+                for (int i = 0; i < 4; i++) {
+                    bytePattern[pos++] = -1;
+                }
+            } else {
+                bytePattern[pos++] = patternByte;
+            }
+        }
+        return bytePattern;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("0x%x: %s", offset, patternStr);
+    }
+
+    private void patch(ByteBuffer file, boolean testOnly,
+                       int... patchValues) {
+        long available = Math.max(0, file.limit() - offset);
+        if (available < patchLength) {
             throw new PatchException(String.format(
                 "expected %d byte(s) at offset 0x%x but only read %d",
-                patchLength, offset, numRead));
+                patchLength, offset, available));
         }
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ByteBuffer buffer = file.duplicate();
         buffer.order(ByteOrder.LITTLE_ENDIAN);
-        int valuesPos = 0;
+        buffer.position((int) offset);
+        // Check everything before we change anything, so a mismatch
+        // part way through doesn't leave a partial patch behind.
         for (int patternByte : pattern) {
             if (patternByte == FILL_IN_DWORD) {
-                if (testOnly) {
-                    buffer.position(buffer.position() + 4);
-                } else {
-                    buffer.putInt(patchValues[valuesPos++]);
-                }
+                buffer.position(buffer.position() + 4);
             } else if ((buffer.get() & 0xff) != patternByte) {
                 int errorPosition = buffer.position() - 1;
                 throw new PatchException(String.format(
                     ("expected byte 0x%02x at offset 0x%x but found 0x%02x"
                      + " instead"),
-                    patternByte, offset + errorPosition,
-                    buffer.get(errorPosition)));
+                    patternByte, errorPosition, buffer.get(errorPosition)));
             }
         }
         if (!testOnly) {
-            file.seek(offset);
-            file.write(bytes);
+            buffer.position((int) offset);
+            int valuesPos = 0;
+            for (int patternByte : pattern) {
+                if (patternByte == FILL_IN_DWORD) {
+                    buffer.putInt(patchValues[valuesPos++]);
+                } else {
+                    buffer.position(buffer.position() + 1);
+                }
+            }
         }
     }
 
     /**
      * Test whether this patch can be applied to the file.
-     * @param file Binary file against which to test this patch.
+     * @param file Contents of the binary file against which to test
+     *             this patch.
      * @return A message explaining why the patch cannot be applied, or
      *         else null if the patch can be applied.
-     * @throws IOException
      */
-    public String testPatch(RandomAccessFile file) throws IOException {
+    public String testPatch(ByteBuffer file) {
         try {
             patch(file, true);
         } catch (PatchException e) {
@@ -107,8 +144,11 @@ class DWordBinaryPatch {
         return null;
     }
 
-    public void patch(RandomAccessFile file, int... patchValues)
-            throws IOException {
+    /**
+     * Apply this patch to a file's contents in memory.  The buffer is
+     * left untouched if the patch doesn't match.
+     */
+    public void patch(ByteBuffer file, int... patchValues) {
         // We allow you to pass in more values than necessary which
         // makes it easy to pass in {width, height} for every patch
         // in a loop in PatchWorker.  All patches need width first.
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a set of DWordBinaryPatches to an executable all at once.
+ *
+ * The executable is read once, every patch is checked and then applied
+ * in memory, and the result is written to a temporary file next to the
+ * output file that is then renamed over it.  Either every patch lands or
+ * the output is left exactly as it was, even if we die part way.  The
+ * output is usually the executable itself, but can be somewhere else
+ * entirely, leaving the original untouched.
+ */
+class ExecutablePatchPlan {
+    private static final Logger logger =
+        LoggerFactory.getLogger(ExecutablePatchPlan.class);
+
+    private final File executableFile;
+    private final DWordBinaryPatch[] patches;
+
+    public ExecutablePatchPlan(File executableFile,
+                               DWordBinaryPatch[] patches) {
+        this.executableFile = executableFile;
+        this.patches = patches;
+    }
+
+    /**
+     * Read a whole file onto the heap.  We deliberately don't map files
+     * we might want to replace later, since Windows won't let you
+     * replace a file while a mapping of it is still alive, and Java
+     * gives us no way to unmap one.
+     */
+    static ByteBuffer readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new RuntimeException(String.format(
+                    "%s is too large to read: %d bytes", file, size));
+            }
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    throw new RuntimeException(String.format(
+                        "%s shrank while reading it", file));
+                }
+            }
+            contents.flip();
+            return contents;
+        }
+    }
+
+    /**
+     * @return A message for every patch that can't be applied to
+     *         contents; empty if they all can.
+     */
+    public List<String> check(ByteBuffer contents) {
+        List<String> errors = new ArrayList<>();
+        for (DWordBinaryPatch patch : patches) {
+            String patchError = patch.testPatch(contents);
+            if (patchError != null) {
+                errors.add(patchError);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @param original The executable, as read with readFile.  It's left
+     *                 as it is.
+     * @return A copy of original with every patch applied.
+     */
+    public ByteBuffer patchedContents(ByteBuffer original, int... patchValues) {
+        ByteBuffer contents = ByteBuffer.allocate(original.remaining());
+        contents.put(original.duplicate());
+        contents.flip();
+        List<String> errors = check(contents);
+        if (!errors.isEmpty()) {
+            throw new PatchException(String.format(
+                "can't patch %s: %s", executableFile,
+                String.join("; ", errors)));
+        }
+        for (DWordBinaryPatch patch : patches) {
+            patch.patch(contents, patchValues);
+        }
+        return contents;
+    }
+
+    /**
+     * Write contents made by patchedContents to outputFile, replacing
+     * outputFile if it exists.
+     */
+    public void applyTo(File outputFile, ByteBuffer contents)
+            throws IOException {
+        replaceFile(outputFile, contents, executableFile);
+        logger.debug("applied {} patch(es) to {}, wrote {}", patches.length,
+                     executableFile, outputFile);
+    }
+
+    /**
+     * Replace outputFile with contents by way of a temporary file, so
+     * that outputFile is either entirely old or entirely new.
+     * @param permissionsFrom File whose permissions the new file gets.
+     */
+    static void replaceFile(File outputFile, ByteBuffer contents,
+                            File permissionsFrom)
+            throws IOException {
+        ByteBuffer buffer = contents.duplicate();
+        Path outputPath = outputFile.toPath();
+        Path tempPath = Files.createTempFile(
+            outputPath.toAbsolutePath().getParent(), outputFile.getName(),
+            ".tmp");
+        try {
+            try (FileChannel output = FileChannel.open(
+                     tempPath, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                // Make sure the data is on disk before the rename is.
+                output.force(true);
+            }
+            copyPermissions(permissionsFrom.toPath(), tempPath);
+            Files.move(tempPath, outputPath,
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to)
+            throws IOException {
+        // createTempFile makes files only we can read, which is wrong
+        // for an executable.  There's nothing to do on Windows.
+        PosixFileAttributeView fromView =
+            Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        if (fromView != null) {
+            Files.setPosixFilePermissions(
+                to, fromView.readAttributes().permissions());
+        }
+    }
+}
@@ -23,30 +23,89 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.nio.CharBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 class INIPatcher {
     private static final int LINE_ENDING_READ_AHEAD = 512;
+    private static final Charset charset = Charset.forName(CPRFile.CHARSET);
+
+    /**
+     * A new value with its substitutions already found.  In the
+     * template, $name is replaced with the substitution called name,
+     * and a backslash makes the character after it literal.
+     */
+    private static class Template {
+        private final String template;
+        // Literal text before each variable, and then after the last.
+        private final List<String> literals = new ArrayList<>();
+        private final List<String> variables = new ArrayList<>();
+
+        public Template(String template) {
+            this.template = template;
+            StringBuilder literal = new StringBuilder();
+            int pos = 0;
+            while (pos < template.length()) {
+                char c = template.charAt(pos);
+                if (c == '\\' && pos + 1 < template.length()) {
+                    literal.append(template.charAt(pos + 1));
+                    pos += 2;
+                } else if (c == '$' && pos + 1 < template.length()
+                           && isWordChar(template.charAt(pos + 1))) {
+                    int end = pos + 1;
+                    while (end < template.length()
+                           && isWordChar(template.charAt(end))) {
+                        end++;
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    variables.add(template.substring(pos + 1, end));
+                    pos = end;
+                } else {
+                    literal.append(c);
+                    pos++;
+                }
+            }
+            literals.add(literal.toString());
+        }
+
+        public void appendTo(StringBuilder output,
+                             Map<String, Object> substitutions) {
+            for (int i = 0; i < variables.size(); i++) {
+                output.append(literals.get(i));
+                Object value = substitutions.get(variables.get(i));
+                if (value == null) {
+                    throw new RuntimeException(String.format(
+                        "no substitution given for $%s in \"%s\"",
+                        variables.get(i), template));
+                }
+                output.append(value);
+            }
+            output.append(literals.get(variables.size()));
+        }
+    }
 
     private class INIPatch {
         public final String section;
         public final String key;
         public final String expectedValue;
-        public final String newValue;
+        public final byte[] expectedValueBytes;
+        public final Template newValue;
 
         public INIPatch(String section, String key,
                         String expectedValue, String newValue) {
             this.section = section;
             this.key = key;
             this.expectedValue = expectedValue;
-            this.newValue = newValue;
+            expectedValueBytes = expectedValue.getBytes(charset);
+            this.newValue = new Template(newValue);
         }
 
         @Override
@@ -55,12 +114,6 @@ class INIPatcher {
         }
     }
 
-    private final Pattern lineEndingPattern = Pattern.compile("\\n|\\r\\n?");
-    private final Pattern sectionPattern =
-        Pattern.compile("^\\[(?<name>[^\\]]+)\\]$");
-    private final Pattern keyValuePattern =
-        Pattern.compile("^(?<key>\\w+)=(?<value>.*)");
-
     private final HashMap<String, HashMap<String, INIPatch>> sections =
         new HashMap<>();
     private final HashSet<INIPatch> allPatches = new HashSet<>();
@@ -80,6 +133,43 @@ class INIPatcher {
         allPatches.add(patch);
     }
 
+    /**
+     * Same as \\w in a regular expression.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+               || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * @return The section name if line is a section header like
+     *         "[name]", otherwise null.
+     */
+    private static String parseSectionName(String line) {
+        int length = line.length();
+        if (length < 3 || line.charAt(0) != '['
+            || line.charAt(length - 1) != ']') {
+            return null;
+        }
+        String name = line.substring(1, length - 1);
+        return name.indexOf(']') < 0 ? name : null;
+    }
+
+    /**
+     * @return The position of the = if line starts with "key=", where
+     *         key is made of word characters, otherwise -1.
+     */
+    private static int findKeyEnd(String line) {
+        int pos = 0;
+        while (pos < line.length() && isWordChar(line.charAt(pos))) {
+            pos++;
+        }
+        if (pos == 0 || pos == line.length() || line.charAt(pos) != '=') {
+            return -1;
+        }
+        return pos;
+    }
+
     private String sniffLineEndings(Reader reader) throws IOException {
         if (!reader.markSupported()) {
             throw new RuntimeException(String.format(
@@ -89,18 +179,25 @@ class INIPatcher {
         // -1 here because, from the sound of the mark/reset contract,
         // if you read *up to* the limit, you may not be able to
         // reset anymore.
-        CharBuffer buf = CharBuffer.allocate(LINE_ENDING_READ_AHEAD - 1);
-        reader.read(buf);
+        char[] buf = new char[LINE_ENDING_READ_AHEAD - 1];
+        int length = 0;
+        int numRead;
+        while (length < buf.length
+               && (numRead = reader.read(buf, length,
+                                         buf.length - length)) > 0) {
+            length += numRead;
+        }
         reader.reset();
-        buf.flip();
-        Matcher matcher = lineEndingPattern.matcher(buf);
-        if (matcher.find()) {
-            return matcher.group();
-        } else {
-            throw new RuntimeException(String.format(
-                "couldn't find end of line within %d byte(s)",
-                LINE_ENDING_READ_AHEAD - 1));
+        for (int i = 0; i < length; i++) {
+            if (buf[i] == '\n') {
+                return "\n";
+            } else if (buf[i] == '\r') {
+                return i + 1 < length && buf[i + 1] == '\n' ? "\r\n" : "\r";
+            }
         }
+        throw new RuntimeException(String.format(
+            "couldn't find end of line within %d byte(s)",
+            LINE_ENDING_READ_AHEAD - 1));
     }
 
     public void patch(Reader input, Writer output,
@@ -110,21 +207,24 @@ class INIPatcher {
         HashSet<INIPatch> patchesApplied = new HashSet<>();
         String lineEnding = sniffLineEndings(bufferedInput);
         HashMap<String, INIPatch> keys = null;
+        StringBuilder patchedLine = new StringBuilder();
         while (true) {
             String line = bufferedInput.readLine();
             if (line == null) {
                 break;
             }
-            Matcher matcher = sectionPattern.matcher(line);
-            if (matcher.matches()) {
-                keys = sections.get(matcher.group("name"));
+            String sectionName = parseSectionName(line);
+            if (sectionName != null) {
+                keys = sections.get(sectionName);
             } else if (keys != null) {
-                matcher = keyValuePattern.matcher(line);
-                if (matcher.matches()) {
-                    String key = matcher.group("key");
-                    INIPatch patch = keys.get(key);
+                int keyEnd = findKeyEnd(line);
+                if (keyEnd >= 0) {
+                    INIPatch patch = keys.get(line.substring(0, keyEnd));
                     if (patch != null) {
-                        line = applyPatch(matcher, patch, substitutions);
+                        patchedLine.setLength(0);
+                        applyPatch(line.substring(keyEnd + 1), patch,
+                                   substitutions, patchedLine);
+                        line = patchedLine.toString();
                         patchesApplied.add(patch);
                     }
                 }
@@ -134,6 +234,10 @@ class INIPatcher {
             // ending at end of file.
             output.write(lineEnding);
         }
+        checkAllPatchesApplied(patchesApplied);
+    }
+
+    private void checkAllPatchesApplied(HashSet<INIPatch> patchesApplied) {
         if (!patchesApplied.equals(allPatches)) {
             HashSet<INIPatch> missingPatches = new HashSet<>(allPatches);
             missingPatches.removeAll(patchesApplied);
@@ -145,42 +249,179 @@ class INIPatcher {
         }
     }
 
-    private final Pattern substitutionPattern = Pattern.compile("\\.|\\$\\w+");
-
-    private String substituteValues(String template,
-                                    Map<String, Object> substitutions) {
-        Matcher matcher = substitutionPattern.matcher(template);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            String matchText = matcher.group();
-            String replacement;
-            if (matchText.charAt(0) == '\\') {
-                assert matchText.length() == 2;
-                replacement = matchText.substring(1);
-            } else {
-                assert matchText.charAt(0) == '$';
-                Object replacementObj =
-                    substitutions.get(matchText.substring(1));
-                if (replacementObj == null) {
-                    throw new RuntimeException(String.format(
-                        "no substitution given for %s in \"%s\"",
-                        matchText, template));
+    /**
+     * Patch an INI file held as bytes in CPRFile.CHARSET, such as a
+     * buffer from CPRFile.getByteBuffer.  This behaves exactly like
+     * patch(Reader, Writer, Map), but works on the bytes directly:
+     * runs of unchanged lines are written straight from input, and only
+     * patched lines are ever turned into Strings.
+     */
+    public void patch(ByteBuffer input, WritableByteChannel output,
+                      Map<String, Object> substitutions)
+            throws IOException {
+        ByteBuffer buffer = input.duplicate();
+        int start = buffer.position();
+        int end = buffer.limit();
+        HashSet<INIPatch> patchesApplied = new HashSet<>();
+        String lineEnding = sniffLineEndings(buffer);
+        byte[] lineEndingBytes = lineEnding.getBytes(charset);
+        HashMap<String, INIPatch> keys = null;
+        StringBuilder patchedLine = new StringBuilder();
+        // Start of input we haven't written yet.
+        int unwritten = start;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n'
+                   && buffer.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            int nextLine = lineEnd;
+            if (nextLine < end && buffer.get(nextLine++) == '\r'
+                && nextLine < end && buffer.get(nextLine) == '\n') {
+                nextLine++;
+            }
+            INIPatch patch = null;
+            int keyEnd = -1;
+            String sectionName = parseSectionName(buffer, lineStart, lineEnd);
+            if (sectionName != null) {
+                keys = sections.get(sectionName);
+            } else if (keys != null) {
+                keyEnd = findKeyEnd(buffer, lineStart, lineEnd);
+                if (keyEnd >= 0) {
+                    patch = keys.get(substring(buffer, lineStart, keyEnd));
                 }
-                replacement = replacementObj.toString();
             }
-            matcher.appendReplacement(result,
-                                      Matcher.quoteReplacement(replacement));
+            if (patch != null) {
+                patchedLine.setLength(0);
+                applyPatch(buffer, keyEnd + 1, lineEnd, patch, substitutions,
+                           patchedLine);
+                patchesApplied.add(patch);
+                write(output, buffer, unwritten, lineStart);
+                patchedLine.append(lineEnding);
+                writeFully(output, ByteBuffer.wrap(
+                    patchedLine.toString().getBytes(charset)));
+                unwritten = nextLine;
+            } else if (!hasLineEnding(buffer, lineEnd, nextLine,
+                                      lineEndingBytes)) {
+                // Every line gets the line ending we sniffed, even the
+                // last, so output differs from input here.
+                write(output, buffer, unwritten, lineEnd);
+                writeFully(output, ByteBuffer.wrap(lineEndingBytes));
+                unwritten = nextLine;
+            }
+            lineStart = nextLine;
+        }
+        write(output, buffer, unwritten, end);
+        checkAllPatchesApplied(patchesApplied);
+    }
+
+    private String sniffLineEndings(ByteBuffer buffer) {
+        int limit = Math.min(buffer.limit(),
+                             buffer.position() + LINE_ENDING_READ_AHEAD - 1);
+        for (int i = buffer.position(); i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return "\n";
+            } else if (buffer.get(i) == '\r') {
+                return i + 1 < limit && buffer.get(i + 1) == '\n'
+                    ? "\r\n" : "\r";
+            }
+        }
+        throw new RuntimeException(String.format(
+            "couldn't find end of line within %d byte(s)",
+            LINE_ENDING_READ_AHEAD - 1));
+    }
+
+    private static String substring(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private static String parseSectionName(ByteBuffer buffer, int start,
+                                           int end) {
+        if (end - start < 3 || buffer.get(start) != '['
+            || buffer.get(end - 1) != ']') {
+            return null;
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (buffer.get(i) == ']') {
+                return null;
+            }
+        }
+        return substring(buffer, start + 1, end - 1);
+    }
+
+    private static int findKeyEnd(ByteBuffer buffer, int start, int end) {
+        int pos = start;
+        // Bytes above 0x7f aren't word characters in any case.
+        while (pos < end && isWordChar((char) buffer.get(pos))) {
+            pos++;
+        }
+        if (pos == start || pos == end || buffer.get(pos) != '=') {
+            return -1;
+        }
+        return pos;
+    }
+
+    private static boolean hasLineEnding(ByteBuffer buffer, int start,
+                                         int end, byte[] lineEnding) {
+        if (end - start != lineEnding.length) {
+            return false;
+        }
+        for (int i = 0; i < lineEnding.length; i++) {
+            if (buffer.get(start + i) != lineEnding[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(WritableByteChannel output, ByteBuffer buffer,
+                              int start, int end)
+            throws IOException {
+        if (start < end) {
+            ByteBuffer range = buffer.duplicate();
+            range.limit(end).position(start);
+            writeFully(output, range);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel output,
+                                   ByteBuffer bytes)
+            throws IOException {
+        while (bytes.hasRemaining()) {
+            output.write(bytes);
+        }
+    }
+
+    private void applyPatch(ByteBuffer buffer, int valueStart, int valueEnd,
+                            INIPatch patch,
+                            Map<String, Object> substitutions,
+                            StringBuilder output) {
+        byte[] expected = patch.expectedValueBytes;
+        boolean matches = valueEnd - valueStart == expected.length;
+        for (int i = 0; matches && i < expected.length; i++) {
+            matches = buffer.get(valueStart + i) == expected[i];
+        }
+        if (matches) {
+            output.append(patch.key).append('=');
+            patch.newValue.appendTo(output, substitutions);
+        } else {
+            // Let the String version produce the error.
+            applyPatch(substring(buffer, valueStart, valueEnd), patch,
+                       substitutions, output);
         }
-        matcher.appendTail(result);
-        return result.toString();
     }
 
-    private String applyPatch(Matcher matcher, INIPatch patch,
-                              Map<String, Object> substitutions) {
-        String value = matcher.group("value");
+    private void applyPatch(String value, INIPatch patch,
+                            Map<String, Object> substitutions,
+                            StringBuilder output) {
         if (value.equals(patch.expectedValue)) {
-            String newValue = substituteValues(patch.newValue, substitutions);
-            return String.format("%s=%s", patch.key, newValue);
+            output.append(patch.key).append('=');
+            patch.newValue.appendTo(output, substitutions);
         } else {
             throw new RuntimeException(String.format(
                 ("expected %s in section %s to have value"
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Shows log records in a JTextArea without flooding the event dispatch
+ * thread.
+ *
+ * Records are formatted on the thread that logs them and put on a
+ * lock-free queue.  A Swing timer drains the queue every so often and
+ * appends everything in one go.  The text area keeps only the last
+ * maxChars or so of text, dropping whole lines from the top.  Text
+ * still waiting in the queue is capped the same way, so a thread
+ * logging in a tight loop costs bounded memory; what gets dropped is
+ * counted and noted in the log area.
+ */
+class LogAreaHandler extends Handler {
+    private static final int DRAIN_INTERVAL_MS = 100;
+
+    private final JTextArea logArea;
+    private final int maxChars;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingChars = new AtomicLong();
+    private final AtomicInteger numDropped = new AtomicInteger();
+    private final Timer timer;
+
+    /**
+     * Must be created on the event dispatch thread.
+     */
+    public LogAreaHandler(JTextArea logArea, int maxChars) {
+        this.logArea = logArea;
+        this.maxChars = maxChars;
+        timer = new Timer(DRAIN_INTERVAL_MS, actionEvent -> drain());
+        timer.setCoalesce(true);
+        timer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        StringBuilder message =
+            new StringBuilder(getFormatter().format(record));
+        //noinspection ThrowableResultOfMethodCallIgnored
+        Throwable throwable = record.getThrown();
+        if (throwable != null) {
+            StringWriter stringWriter = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(stringWriter));
+            message.append(stringWriter);
+        }
+        pending.add(message.toString());
+        // Anything beyond maxChars would be trimmed off the text area
+        // as soon as it was added, so don't hang on to it.
+        if (pendingChars.addAndGet(message.length()) > maxChars) {
+            String dropped;
+            while (pendingChars.get() > maxChars
+                   && (dropped = pending.poll()) != null) {
+                pendingChars.addAndGet(-dropped.length());
+                numDropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Move everything queued into the text area.  Runs on the event
+     * dispatch thread.
+     */
+    private void drain() {
+        int dropped = numDropped.getAndSet(0);
+        if (pending.isEmpty() && dropped == 0) {
+            return;
+        }
+        StringBuilder batch = new StringBuilder();
+        if (dropped > 0) {
+            batch.append(String.format(
+                "(%d log message(s) dropped)\n", dropped));
+        }
+        // Stop after a text area's worth, or we could be here forever
+        // while other threads keep logging.
+        String message;
+        while (batch.length() < maxChars
+               && (message = pending.poll()) != null) {
+            pendingChars.addAndGet(-message.length());
+            batch.append(message);
+        }
+        logArea.append(batch.toString());
+        trim();
+    }
+
+    private void trim() {
+        Document document = logArea.getDocument();
+        int excess = document.getLength() - maxChars;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            // Remove whole lines, through the one containing the last
+            // character we have to remove.
+            int end = logArea.getLineEndOffset(
+                logArea.getLineOfOffset(excess - 1));
+            document.remove(0, end);
+        } catch (BadLocationException e) {
+            // Can't happen: these offsets all come from the document.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        SwingUtilities.invokeLater(this::drain);
+    }
+
+    @Override
+    public void close() {
+        SwingUtilities.invokeLater(() -> {
+            timer.stop();
+            drain();
+        });
+    }
+}
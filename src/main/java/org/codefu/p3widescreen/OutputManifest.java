@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Records what each file a PatchWorker wrote was made from, so a later
+ * run can skip outputs whose inputs haven't changed.
+ *
+ * Each output is listed by its path relative to the output directory,
+ * with a description of its inputs (source identities and parameters)
+ * and the SHA-256 of what we wrote.  An output is up to date if its
+ * inputs are described the same way now and the file still has that
+ * hash, meaning nobody has replaced or changed it since.  The manifest
+ * is a properties file, normally FILE_NAME in the output directory.
+ *
+ * It also remembers the SHA-256 of source files that are expensive to
+ * hash, namely the data archive, along with their size and
+ * modification time, so that a run where nothing has changed doesn't
+ * have to read the whole archive just to find that out.
+ */
+class OutputManifest {
+    private static final Logger logger =
+        LoggerFactory.getLogger(OutputManifest.class);
+
+    static final String FILE_NAME = "p3widescreen-manifest.properties";
+    // Change this whenever the same inputs would produce different
+    // outputs, such as when patches change, to discard old manifests.
+    private static final String VERSION = "1";
+    private static final String VERSION_KEY = "version";
+    private static final String INPUTS_SUFFIX = ".inputs";
+    private static final String HASH_SUFFIX = ".sha256";
+    private static final String SOURCE_PREFIX = "source.";
+
+    private final File directory;
+    private final File file;
+    // Properties is synchronized, and stages record outputs
+    // concurrently.
+    private final Properties entries;
+
+    private OutputManifest(File directory, File file, Properties entries) {
+        this.directory = directory;
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * @param directory The output directory the manifest describes.
+     * @param file Where the manifest is kept.
+     * @return The manifest in file, or an empty one if there isn't one
+     *         we can use.
+     */
+    public static OutputManifest load(File directory, File file) {
+        Properties entries = new Properties();
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            entries.load(input);
+            if (!VERSION.equals(entries.getProperty(VERSION_KEY))) {
+                logger.info("ignoring manifest {} from another version",
+                            file);
+                entries.clear();
+            }
+        } catch (NoSuchFileException e) {
+            logger.debug("no manifest at {}", file);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("ignoring unreadable manifest {}: {}", file,
+                        e.toString());
+            entries.clear();
+        }
+        entries.setProperty(VERSION_KEY, VERSION);
+        return new OutputManifest(directory, file, entries);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-256.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public static String hash(ByteBuffer contents) {
+        MessageDigest digest = newDigest();
+        digest.update(contents.duplicate());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return SHA-256 of file's contents, or null if it doesn't exist.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        // Read rather than map: we may be about to replace this file.
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return toHex(digest.digest());
+    }
+
+    private File outputFile(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * @param name Output's path relative to the output directory.
+     * @param inputs Description of everything the output depends on.
+     */
+    public boolean isUpToDate(String name, String inputs) throws IOException {
+        String recordedHash = entries.getProperty(name + HASH_SUFFIX);
+        return inputs.equals(entries.getProperty(name + INPUTS_SUFFIX))
+               && recordedHash != null
+               && recordedHash.equals(hash(outputFile(name)));
+    }
+
+    /**
+     * Note that output name was just written from inputs.
+     */
+    public void record(String name, String inputs) throws IOException {
+        String hash = hash(outputFile(name));
+        if (hash == null) {
+            throw new RuntimeException(String.format(
+                "can't record missing output %s", outputFile(name)));
+        }
+        synchronized (entries) {
+            entries.setProperty(name + INPUTS_SUFFIX, inputs);
+            entries.setProperty(name + HASH_SUFFIX, hash);
+        }
+    }
+
+    /**
+     * @param source Canonical path of a source file.
+     * @return The SHA-256 recorded for source, if its length and
+     *         modification time are still what they were when it was
+     *         recorded, else null.
+     */
+    public String getSourceHash(File source, long length,
+                                long lastModified) {
+        String recorded = entries.getProperty(SOURCE_PREFIX + source);
+        String stamp = length + ":" + lastModified + ":";
+        if (recorded == null || !recorded.startsWith(stamp)) {
+            return null;
+        }
+        return recorded.substring(stamp.length());
+    }
+
+    /**
+     * Remember source's SHA-256 for getSourceHash.
+     * @param length Length of source before it was hashed.
+     * @param lastModified Modification time of source before it was
+     *                     hashed.
+     */
+    public void recordSourceHash(File source, long length, long lastModified,
+                                 String hash) {
+        entries.setProperty(SOURCE_PREFIX + source,
+                            length + ":" + lastModified + ":" + hash);
+    }
+
+    /**
+     * Write the manifest out.  Failures are only logged, since the
+     * worst that happens without a manifest is that the next run redoes
+     * everything.
+     */
+    public void save() {
+        Path path = file.toPath();
+        Path tempPath = path.resolveSibling(file.getName() + ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(tempPath)) {
+                entries.store(output, "Written by P3WideScreen");
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("wrote manifest {}", file);
+        } catch (IOException e) {
+            logger.warn("failed to write manifest {}: {}", file,
+                        e.toString());
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignored) {
+                // Nothing more we can do.
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Write-ahead journal of what a patch run is about to change, so that
+ * undo can put every file back exactly as it was.
+ *
+ * The journal is journal.txt in the BackupStore directory.  Before a
+ * file is replaced, a line describing its current state is appended
+ * and forced to disk; only then is the file touched.  A run that dies
+ * part way can therefore still be undone: restoring a file that never
+ * got replaced just leaves it as it is.  Lines are tab separated, with
+ * EVENT being BackupStore's event for the run:
+ *
+ * <pre>
+ * FILE    EVENT  PATH  SHA-256     file was backed up as this object
+ * FILE    EVENT  PATH  -           file didn't exist
+ * SITES   EVENT  PATH  SHA-256  OFFSET=HEX,...
+ * UNDONE  EVENT
+ * </pre>
+ *
+ * SITES is used when only some small ranges of a file are about to
+ * change, as happens to the executable: it lists the original bytes at
+ * each range and the SHA-256 of the whole original, so undo only needs
+ * to put those bytes back.  Nothing goes into the BackupStore for it.
+ *
+ * Undo reverts the latest run that changed anything and hasn't already
+ * been undone, replaying its lines in reverse, and then marks it
+ * UNDONE.  Undoing again reverts the run before that.
+ */
+class PatchJournal {
+    private static final Logger logger =
+        LoggerFactory.getLogger(PatchJournal.class);
+
+    static final String FILE_NAME = "journal.txt";
+    private static final String MISSING = "-";
+
+    private final BackupStore backups;
+    private final Path journalFile;
+
+    public PatchJournal(BackupStore backups) {
+        this.backups = backups;
+        journalFile = backups.getDirectory().toPath().resolve(FILE_NAME);
+    }
+
+    private synchronized void append(String... fields) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        String text = String.join("\t", fields) + "\n";
+        try (FileChannel channel = FileChannel.open(
+                 journalFile, StandardOpenOption.CREATE,
+                 StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > 0) {
+                // Finish off any partial line a crash left behind, so it
+                // isn't glued to this one.
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, size - 1);
+                if (last.get(0) != '\n') {
+                    text = "\n" + text;
+                }
+            }
+            ByteBuffer line = StandardCharsets.UTF_8.encode(text);
+            channel.position(size);
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            // The whole point is that this is on disk before the change
+            // it describes.
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Call before replacing file with something else entirely.  Backs
+     * file up, if it exists, and journals how to restore it.
+     */
+    public void recordFile(File file) throws IOException {
+        String name = backups.relativeName(file);
+        String hash = file.exists() ? backups.backUp(file) : MISSING;
+        append("FILE", backups.getEvent(), name, hash);
+    }
+
+    /**
+     * Call before replacing file with newContents, which is expected to
+     * differ from file only where patches apply.  Only the original
+     * bytes at each patch are journaled, unless file has other
+     * differences, in which case this falls back to recordFile.
+     * @param oldContents file's current contents.
+     */
+    public void recordPatchSites(File file, ByteBuffer oldContents,
+                                 DWordBinaryPatch[] patches,
+                                 ByteBuffer newContents)
+            throws IOException {
+        // Put the old bytes at each site into a copy of the new
+        // contents: if that gives back the old file, the sites are all
+        // that will change.
+        ByteBuffer restored = ByteBuffer.allocate(newContents.remaining());
+        restored.put(newContents.duplicate());
+        List<String> sites = new ArrayList<>();
+        for (DWordBinaryPatch patch : patches) {
+            int offset = (int) patch.getOffset();
+            int length = patch.getBytePattern().length;
+            if (offset + length > oldContents.limit()
+                || offset + length > restored.limit()) {
+                sites = null;
+                break;
+            }
+            StringBuilder hex = new StringBuilder();
+            for (int i = offset; i < offset + length; i++) {
+                byte b = oldContents.get(i);
+                restored.put(i, b);
+                hex.append(String.format("%02x", b));
+            }
+            sites.add(offset + "=" + hex);
+        }
+        restored.clear();
+        if (sites == null || !restored.equals(oldContents)) {
+            logger.debug("{} differs from its patched version beyond the"
+                         + " patch sites", file);
+            recordFile(file);
+            return;
+        }
+        append("SITES", backups.getEvent(), backups.relativeName(file),
+               OutputManifest.hash(oldContents), String.join(",", sites));
+    }
+
+    private List<String[]> readRecords() throws IOException {
+        String journal;
+        try {
+            journal = new String(Files.readAllBytes(journalFile),
+                                 StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+        List<String[]> records = new ArrayList<>();
+        int start = 0;
+        int end;
+        // Anything after the last newline is a line we died writing,
+        // so the change it describes never started.
+        while ((end = journal.indexOf('\n', start)) >= 0) {
+            records.add(journal.substring(start, end).split("\t", -1));
+            start = end + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Revert the most recent run that hasn't been undone yet.
+     * @return The event undone, or null if there was nothing to undo.
+     */
+    public String undo() throws IOException {
+        List<String[]> records = readRecords();
+        Set<String> undone = new HashSet<>();
+        for (String[] record : records) {
+            if (record.length == 2 && record[0].equals("UNDONE")) {
+                undone.add(record[1]);
+            }
+        }
+        String event = null;
+        for (int i = records.size() - 1; i >= 0 && event == null; i--) {
+            String[] record = records.get(i);
+            if (record.length >= 4 && !undone.contains(record[1])) {
+                event = record[1];
+            }
+        }
+        if (event == null) {
+            logger.info("nothing to undo in {}", journalFile);
+            return null;
+        }
+        logger.info("undoing run {}", event);
+        for (int i = records.size() - 1; i >= 0; i--) {
+            String[] record = records.get(i);
+            if (record.length < 4 || !record[1].equals(event)) {
+                continue;
+            }
+            File file = backups.resolve(record[2]);
+            if (record[0].equals("FILE")) {
+                undoFile(file, record[3]);
+            } else if (record[0].equals("SITES") && record.length == 5) {
+                undoSites(file, record[3], record[4]);
+            }
+        }
+        append("UNDONE", event);
+        return event;
+    }
+
+    private void undoFile(File file, String hash) throws IOException {
+        if (hash.equals(MISSING)) {
+            if (Files.deleteIfExists(file.toPath())) {
+                logger.info("removed {}", file);
+            }
+        } else if (hash.equals(OutputManifest.hash(file))) {
+            logger.info("{} is already as it was", file);
+        } else {
+            backups.restore(hash, file);
+        }
+    }
+
+    private void undoSites(File file, String hash, String sitesField)
+            throws IOException {
+        ByteBuffer contents = ExecutablePatchPlan.readFile(file);
+        List<Integer> offsets = new ArrayList<>();
+        List<byte[]> originals = new ArrayList<>();
+        for (String site : sitesField.split(",")) {
+            int equals = site.indexOf('=');
+            int offset = Integer.parseInt(site.substring(0, equals));
+            String hex = site.substring(equals + 1);
+            byte[] original = new byte[hex.length() / 2];
+            for (int i = 0; i < original.length; i++) {
+                original[i] = (byte) Integer.parseInt(
+                    hex.substring(i * 2, i * 2 + 2), 16);
+            }
+            if (offset + original.length > contents.limit()) {
+                throw new RuntimeException(String.format(
+                    "%s is too short to undo patch at offset 0x%x", file,
+                    offset));
+            }
+            for (int i = 0; i < original.length; i++) {
+                contents.put(offset + i, original[i]);
+            }
+            offsets.add(offset);
+            originals.add(original);
+        }
+        // Check before touching anything, in case the file was changed
+        // some other way since.
+        if (!hash.equals(OutputManifest.hash(contents))) {
+            throw new RuntimeException(String.format(
+                "%s has changed since it was patched, can't undo", file));
+        }
+        if (hasOtherLinks(file.toPath())) {
+            // The file's data may be shared with a backup, so it has to
+            // be replaced rather than changed in place.
+            ExecutablePatchPlan.replaceFile(file, contents, file);
+            logger.info("restored {}", file);
+            return;
+        }
+        // Rewriting the same bytes is harmless, so if we die part way
+        // through this, undoing again will finish the job.
+        try (FileChannel channel = FileChannel.open(
+                 file.toPath(), StandardOpenOption.WRITE)) {
+            for (int i = 0; i < offsets.size(); i++) {
+                ByteBuffer original = ByteBuffer.wrap(originals.get(i));
+                long position = offsets.get(i);
+                while (original.hasRemaining()) {
+                    position += channel.write(original, position);
+                }
+            }
+            channel.force(true);
+        }
+        logger.info("restored {} patch site(s) in {}", offsets.size(), file);
+    }
+
+    private static boolean hasOtherLinks(Path path) {
+        try {
+            Object numLinks = Files.getAttribute(path, "unix:nlink");
+            return numLinks instanceof Number
+                   && ((Number) numLinks).intValue() > 1;
+        } catch (IOException | UnsupportedOperationException
+                 | IllegalArgumentException e) {
+            // There's no portable way to count links (Windows has no
+            // "unix" view).  Nothing of ours should share this file's
+            // data: BackupStore only links an object from a file that is
+            // about to be replaced, the patch run that wrote SITES
+            // replaced this file with a new one, and restore copies.
+            return false;
+        }
+    }
+
+    /**
+     * Command line entry point, invoked via App as
+     * <code>undo DIRECTORY</code>.
+     * @return Process exit status.
+     */
+    static int runCommand(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: undo DIRECTORY");
+            return 2;
+        }
+        PatchJournal journal =
+            new PatchJournal(new BackupStore(new File(args[0])));
+        String event = journal.undo();
+        System.out.println(event == null ? "nothing to undo"
+                                         : "undid patch run of " + event);
+        return 0;
+    }
+}
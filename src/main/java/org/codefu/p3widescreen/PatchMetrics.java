@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, CPU time, and bytes read and written for each stage of a
+ * patch run.  Stages may run on different threads at once.
+ *
+ * CPU time is measured on the thread that runs the stage, plus
+ * whatever the stage adds with addCpuNanos for work it hands to other
+ * threads.  Byte counts are whatever stages report: the data they
+ * consume and produce, not every read and write the system makes.
+ */
+class PatchMetrics {
+    private static final ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    class Stage implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+        private final long startCpuNanos;
+        private long wallNanos = -1;
+        private long cpuNanos = -1;
+        private final AtomicLong extraCpuNanos = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+
+        private Stage(String name) {
+            this.name = name;
+            startCpuNanos = threadCpuNanos();
+            startNanos = System.nanoTime();
+        }
+
+        public void addBytesRead(long count) {
+            bytesRead.addAndGet(count);
+        }
+
+        public void addBytesWritten(long count) {
+            bytesWritten.addAndGet(count);
+        }
+
+        public void addCpuNanos(long nanos) {
+            extraCpuNanos.addAndGet(nanos);
+        }
+
+        /**
+         * Stop timing.  Must be called on the thread that started the
+         * stage.
+         */
+        @Override
+        public void close() {
+            long endNanos = System.nanoTime();
+            long endCpuNanos = threadCpuNanos();
+            synchronized (PatchMetrics.this) {
+                wallNanos = endNanos - startNanos;
+                cpuNanos = endCpuNanos - startCpuNanos + extraCpuNanos.get();
+            }
+        }
+    }
+
+    /**
+     * @return CPU time used by the current thread, or 0 if the JVM
+     *         can't tell us.
+     */
+    static long threadCpuNanos() {
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            return 0;
+        }
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Start timing a stage on the current thread.  Use it with
+     * try-with-resources.
+     */
+    public synchronized Stage start(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        return stage;
+    }
+
+    private static String milliseconds(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * @return A JSON array with one object per finished stage, in the
+     *         order they started.
+     */
+    public synchronized String toJSON() {
+        List<String> objects = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (stage.wallNanos < 0) {
+                continue;
+            }
+            objects.add(String.format(
+                "{\"stage\":%s,\"wallMs\":%s,\"cpuMs\":%s,\"bytesRead\":%d,"
+                + "\"bytesWritten\":%d}",
+                BatchPatcher.jsonString(stage.name),
+                milliseconds(stage.wallNanos), milliseconds(stage.cpuNanos),
+                stage.bytesRead.get(), stage.bytesWritten.get()));
+        }
+        return "[" + String.join(",", objects) + "]";
+    }
+
+    /**
+     * @return A table of finished stages for people to read, without a
+     *         final newline.
+     */
+    public synchronized String formatTable() {
+        int nameWidth = "stage".length();
+        for (Stage stage : stages) {
+            nameWidth = Math.max(nameWidth, stage.name.length());
+        }
+        String format = "%-" + nameWidth + "s %9s %9s %9s %11s";
+        StringBuilder table = new StringBuilder(String.format(
+            format, "stage", "wall ms", "cpu ms", "KiB read",
+            "KiB written"));
+        for (Stage stage : stages) {
+            if (stage.wallNanos < 0) {
+                continue;
+            }
+            table.append('\n').append(String.format(
+                format, stage.name, milliseconds(stage.wallNanos),
+                milliseconds(stage.cpuNanos),
+                (stage.bytesRead.get() + 1023) / 1024,
+                (stage.bytesWritten.get() + 1023) / 1024));
+        }
+        return table.toString();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds where DWordBinaryPatch patterns occur in a binary, for builds
+ * of the game where code has moved away from the offsets we know.
+ *
+ * All patterns are found in one pass.  We take the longest run of
+ * literal bytes from each pattern as its "anchor", build an
+ * Aho-Corasick automaton over the anchors, and check the rest of a
+ * pattern (wildcards included) only where its anchor turns up.
+ */
+class PatchSiteScanner {
+    private final int[][] bytePatterns;
+    private final int[] anchorStarts;
+    private final int[] anchorLengths;
+    // transitions[state * 256 + byte] is the next state.  State 0 is
+    // the root.  This is the full DFA, so scanning never backtracks.
+    private final int[] transitions;
+    // Patterns whose anchors end at each state, including those
+    // reached via failure links.
+    private final int[][] outputs;
+
+    public PatchSiteScanner(DWordBinaryPatch[] patches) {
+        bytePatterns = new int[patches.length][];
+        anchorStarts = new int[patches.length];
+        anchorLengths = new int[patches.length];
+        int maxStates = 1;
+        for (int i = 0; i < patches.length; i++) {
+            bytePatterns[i] = patches[i].getBytePattern();
+            findAnchor(i);
+            maxStates += anchorLengths[i];
+        }
+        int[] trie = new int[maxStates * 256];
+        Arrays.fill(trie, -1);
+        List<List<Integer>> stateOutputs = new ArrayList<>();
+        stateOutputs.add(new ArrayList<>());
+        int numStates = 1;
+        for (int i = 0; i < patches.length; i++) {
+            int state = 0;
+            int[] pattern = bytePatterns[i];
+            for (int j = anchorStarts[i];
+                 j < anchorStarts[i] + anchorLengths[i]; j++) {
+                int next = trie[state * 256 + pattern[j]];
+                if (next == -1) {
+                    next = numStates++;
+                    trie[state * 256 + pattern[j]] = next;
+                    stateOutputs.add(new ArrayList<>());
+                }
+                state = next;
+            }
+            stateOutputs.get(state).add(i);
+        }
+        transitions = new int[numStates * 256];
+        int[] failure = new int[numStates];
+        // Breadth-first, so failure links always point at states we've
+        // already finished.
+        int[] queue = new int[numStates];
+        int head = 0, tail = 0;
+        for (int b = 0; b < 256; b++) {
+            int next = trie[b];
+            if (next == -1) {
+                transitions[b] = 0;
+            } else {
+                transitions[b] = next;
+                failure[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            stateOutputs.get(state).addAll(stateOutputs.get(failure[state]));
+            for (int b = 0; b < 256; b++) {
+                int next = trie[state * 256 + b];
+                if (next == -1) {
+                    transitions[state * 256 + b] =
+                        transitions[failure[state] * 256 + b];
+                } else {
+                    transitions[state * 256 + b] = next;
+                    failure[next] = transitions[failure[state] * 256 + b];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        outputs = new int[numStates][];
+        for (int state = 0; state < numStates; state++) {
+            outputs[state] = stateOutputs.get(state).stream()
+                .mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private void findAnchor(int patchIndex) {
+        int[] pattern = bytePatterns[patchIndex];
+        int runStart = 0;
+        for (int i = 0; i <= pattern.length; i++) {
+            if (i == pattern.length || pattern[i] == -1) {
+                if (i - runStart > anchorLengths[patchIndex]) {
+                    anchorStarts[patchIndex] = runStart;
+                    anchorLengths[patchIndex] = i - runStart;
+                }
+                runStart = i + 1;
+            }
+        }
+        if (anchorLengths[patchIndex] == 0) {
+            throw new RuntimeException(String.format(
+                "pattern %d has no literal bytes to search for", patchIndex));
+        }
+    }
+
+    private boolean matchesAt(int[] pattern, ByteBuffer data, int start) {
+        if (start < 0 || start + pattern.length > data.limit()) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (pattern[i] != -1
+                && (data.get(start + i) & 0xff) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param data Contents of the binary, searched from 0 to its limit.
+     * @return For each patch given to the constructor, in order, the
+     *         ascending offsets at which its whole pattern matches.
+     */
+    public long[][] scan(ByteBuffer data) {
+        List<List<Long>> found = new ArrayList<>();
+        for (int i = 0; i < bytePatterns.length; i++) {
+            found.add(new ArrayList<>());
+        }
+        int state = 0;
+        int limit = data.limit();
+        for (int pos = 0; pos < limit; pos++) {
+            state = transitions[state * 256 + (data.get(pos) & 0xff)];
+            for (int patchIndex : outputs[state]) {
+                int start = pos + 1 - anchorLengths[patchIndex]
+                            - anchorStarts[patchIndex];
+                if (matchesAt(bytePatterns[patchIndex], data, start)) {
+                    found.get(patchIndex).add((long) start);
+                }
+            }
+        }
+        long[][] result = new long[bytePatterns.length][];
+        for (int i = 0; i < bytePatterns.length; i++) {
+            result[i] = found.get(i).stream()
+                .mapToLong(Long::longValue).toArray();
+        }
+        return result;
+    }
+
+    public long[][] scan(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            return scan(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    channel.size()));
+        }
+    }
+
+    /**
+     * Command line entry point, invoked via App as
+     * <code>scan EXECUTABLE</code>.  Prints one line per patch in
+     * PatchWorker.executablePatches: its usual offset followed by every
+     * offset where it was found.
+     * @return Process exit status: 0 if every patch was found exactly
+     *         once, else 1.
+     */
+    static int runCommand(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: scan EXECUTABLE");
+            return 2;
+        }
+        DWordBinaryPatch[] patches = PatchWorker.executablePatches;
+        long[][] sites = new PatchSiteScanner(patches).scan(new File(args[0]));
+        int status = 0;
+        for (int i = 0; i < patches.length; i++) {
+            StringBuilder line = new StringBuilder(
+                String.format("0x%x", patches[i].getOffset()));
+            for (long site : sites[i]) {
+                line.append(String.format(" 0x%x", site));
+            }
+            System.out.println(line);
+            if (sites[i].length != 1) {
+                status = 1;
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What PatchWorkers read from the game's data archive: the parsed
+ * archive itself and the decoded source images.  Workers that share a
+ * PatchSources, such as those patching many installations in one
+ * batch, parse each distinct archive and decode each image only once.
+ *
+ * Archives are considered identical when their contents have the same
+ * SHA-256.  Each archive file is hashed once for as long as this
+ * PatchSources lives, unless its size or modification time changes,
+ * and the hash is kept in the output manifest so that later runs don't
+ * hash it again either.
+ * Everything here is safe to use from several threads at once.
+ */
+class PatchSources {
+    private static final Logger logger =
+        LoggerFactory.getLogger(PatchSources.class);
+
+    private final ResizedImageCache imageCache;
+    // Keyed by archiveKey.
+    private final ConcurrentMap<String, CompletableFuture<CPRFile>> archives =
+        new ConcurrentHashMap<>();
+    // archiveKey results, keyed by canonical path, size, and
+    // modification time.
+    private final ConcurrentMap<String, CompletableFuture<String>>
+        archiveKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CPRFile, ConcurrentMap<String,
+        CompletableFuture<BufferedImage>>> images = new ConcurrentHashMap<>();
+
+    public PatchSources() {
+        this(ResizedImageCache.createDefault());
+    }
+
+    /**
+     * @param imageCache Cache of resized images to use, or null to
+     *                   always resize.
+     */
+    public PatchSources(ResizedImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @return The resized image cache, or null if there isn't one.
+     */
+    public ResizedImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * @param manifest Where an earlier run may have recorded the hash,
+     *                 and where to record it for the next, or null.
+     * @return A string identifying the archive's contents: its SHA-256.
+     *         This is also what OutputManifest records as the archive
+     *         outputs were made from.
+     */
+    String archiveKey(File file, OutputManifest manifest)
+            throws IOException {
+        File canonicalFile = file.getCanonicalFile();
+        // Taken before hashing, so a change while we hash is noticed
+        // next time.
+        long length = canonicalFile.length();
+        long lastModified = canonicalFile.lastModified();
+        String fileKey = String.format("%s:%d:%d", canonicalFile, length,
+                                       lastModified);
+        String key = getOrCompute(archiveKeys, fileKey, () -> {
+            String hash = manifest == null ? null : manifest.getSourceHash(
+                canonicalFile, length, lastModified);
+            if (hash != null) {
+                logger.debug("archive {} unchanged since it was last hashed",
+                             canonicalFile);
+                return hash;
+            }
+            logger.debug("hashing archive {}", canonicalFile);
+            hash = OutputManifest.hash(canonicalFile);
+            if (hash == null) {
+                throw new NoSuchFileException(canonicalFile.toString());
+            }
+            return hash;
+        });
+        if (manifest != null) {
+            manifest.recordSourceHash(canonicalFile, length, lastModified,
+                                      key);
+        }
+        return key;
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /**
+     * Return the value for key, computing it if nobody has yet.  If
+     * another thread is already computing it, wait for that instead.
+     * Failures aren't remembered, so a later call will try again.
+     */
+    private static <K, V> V getOrCompute(
+            ConcurrentMap<K, CompletableFuture<V>> map, K key,
+            IOSupplier<V> supplier)
+            throws IOException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = map.putIfAbsent(key, future);
+        if (existing == null) {
+            try {
+                future.complete(supplier.get());
+            } catch (IOException | RuntimeException e) {
+                map.remove(key, future);
+                future.completeExceptionally(e);
+                throw e;
+            }
+            return future.join();
+        }
+        try {
+            return existing.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    public CPRFile getArchive(File file) throws IOException {
+        String key = archiveKey(file, null);
+        return getOrCompute(archives, key, () -> {
+            logger.debug("opening archive {} (key {})", file, key);
+            // Patching only wants a handful of entries, so don't read
+            // (or cache) the whole index.
+            return new CPRFile(file, false, true);
+        });
+    }
+
+    /**
+     * Decode an image from an archive.  The image returned may be
+     * shared with other callers, so don't modify it.
+     */
+    public BufferedImage getImage(CPRFile cprFile, String path)
+            throws IOException {
+        ConcurrentMap<String, CompletableFuture<BufferedImage>> archiveImages =
+            images.computeIfAbsent(cprFile, k -> new ConcurrentHashMap<>());
+        return getOrCompute(archiveImages, path, () -> {
+            logger.debug("decoding {}", path);
+            try {
+                return BMPCodec.decode(cprFile.getByteBuffer(path));
+            } catch (RuntimeException e) {
+                throw new RuntimeException(String.format(
+                    "can't decode image \"%s\"", path), e);
+            }
+        });
+    }
+}
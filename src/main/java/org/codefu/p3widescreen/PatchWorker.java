@@ -20,19 +20,35 @@
 package org.codefu.p3widescreen;
 
 import com.mortennobel.imagescaling.AdvancedResizeOp;
-import com.mortennobel.imagescaling.ResampleOp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 class PatchWorker extends SwingWorker<Void, Void> {
-    private static final DWordBinaryPatch[] executablePatches = {
+    static final DWordBinaryPatch[] executablePatches = {
         // The ?s in these first five are all width first, then height.
         new DWordBinaryPatch(0x23bf0, "c7 44 24 4c ? c7 44 24 50 ?"),
         new DWordBinaryPatch(0x2d168, "c7 44 24 18 ? c7 44 24 1c ?"),
@@ -75,109 +91,507 @@ class PatchWorker extends SwingWorker<Void, Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(PatchWorker.class);
 
+    // Describes how writeResizedImage resizes, for ResizedImageCache.
+    // Change this whenever that would produce different output.
+    private static final String RESIZE_SETTINGS =
+        "ResampleOp Lanczos3, UnsharpenMask.Normal in strips, BMPCodec 24-bit";
+
+    // Shared by every worker so that resizing several images at once
+    // doesn't start a thread per core for each of them.
+    private static final ForkJoinPool RESIZE_POOL = new ForkJoinPool();
+
+    // Executable, two images, and INI files.
+    private static final int NUM_STAGES = 4;
+
     private final File executableFile;
     private final File dataArchiveFile;
+    private final File outputDirectory;
+    private final File outputExecutableFile;
     private final File imagesDirectory;
     private final File scriptsDirectory;
     private final int width;
     private final int height;
+    // executablePatches, possibly moved to wherever prePatchChecks
+    // found them in this particular executable.
+    private DWordBinaryPatch[] patches;
+    // Hash of the executable ignoring the values we patch in.
+    private String executableIdentity;
+    private final PatchSources sources;
+    // Null unless patching in place.
+    private final PatchJournal journal;
+    private final File manifestFile;
+    // Loaded by runPatch.
+    private OutputManifest manifest;
+    private final PatchMetrics metrics = new PatchMetrics();
+    private final List<String> checkFailures = new ArrayList<>();
 
     public PatchWorker(String gameDirectoryPath, int width, int height) {
+        this(gameDirectoryPath, width, height, new PatchSources());
+    }
+
+    /**
+     * @param sources Where to get the archive and source images from.
+     *                Workers can share one to avoid re-reading the same
+     *                data.
+     */
+    public PatchWorker(String gameDirectoryPath, int width, int height,
+                       PatchSources sources) {
+        this(gameDirectoryPath, gameDirectoryPath, width, height, sources);
+    }
+
+    /**
+     * @param outputDirectoryPath Where to write the patched executable,
+     *                            images, and INI files.  The game
+     *                            directory is only read from, unless
+     *                            this is the same directory.  Output
+     *                            anywhere else is not backed up or
+     *                            journaled, and its manifest is kept
+     *                            beside it rather than in it, so the
+     *                            directory holds nothing but game
+     *                            files.
+     */
+    public PatchWorker(String gameDirectoryPath, String outputDirectoryPath,
+                       int width, int height, PatchSources sources) {
         File gameDirectory = new File(gameDirectoryPath);
         executableFile = new File(gameDirectory, "Patrician3.exe");
         dataArchiveFile = new File(gameDirectory, "p2arch0_eng.cpr");
-        imagesDirectory = new File(gameDirectory, "images");
-        scriptsDirectory = new File(gameDirectory, "scripts");
+        outputDirectory = new File(outputDirectoryPath);
+        outputExecutableFile = new File(outputDirectory, "Patrician3.exe");
+        imagesDirectory = new File(outputDirectory, "images");
+        scriptsDirectory = new File(outputDirectory, "scripts");
         this.width = width;
         this.height = height;
+        this.sources = sources;
+        // Only an installation patched in place has anything of the
+        // user's to back up.  Anywhere else, such as a pack preset, we
+        // write new files, and a journal saying they didn't exist would
+        // have undo delete them from whatever install they're copied
+        // into.
+        if (gameDirectory.getAbsoluteFile().toPath().normalize().equals(
+                outputDirectory.getAbsoluteFile().toPath().normalize())) {
+            journal = new PatchJournal(new BackupStore(outputDirectory));
+            manifestFile = new File(outputDirectory, OutputManifest.FILE_NAME);
+        } else {
+            journal = null;
+            manifestFile = new File(
+                outputDirectory.getAbsoluteFile().getParentFile(),
+                outputDirectory.getName() + "." + OutputManifest.FILE_NAME);
+        }
+    }
+
+    /**
+     * Identify the build of the game, then find where to apply each of
+     * executablePatches in it.  Known builds use the offsets listed in
+     * BuildIdentifier.KNOWN_BUILDS; anything else goes to
+     * locatePatches.
+     * @return Patches to apply, or null if we can't patch this build
+     *         (errors will have been recorded with checkFailed).
+     */
+    private DWordBinaryPatch[] choosePatches(ByteBuffer executable)
+            throws IOException {
+        // The archive is much bigger than the executable, so start on
+        // it first, but only if there's something to check it against.
+        CompletableFuture<String> archiveChecksum = null;
+        if (BuildIdentifier.hasArchiveChecksums()
+            && dataArchiveFile.canRead()) {
+            archiveChecksum = CompletableFuture.supplyAsync(uncheckedSupplier(
+                () -> BuildIdentifier.checksum(dataArchiveFile)));
+        }
+        String checksum = BuildIdentifier.checksum(executable);
+        BuildIdentifier.KnownBuild build = BuildIdentifier.findBuild(checksum);
+        if (build == null) {
+            logger.info("{} (checksum {}) is not a known build",
+                        executableFile, checksum);
+            return locatePatches(executable);
+        }
+        logger.info("{} is {}", executableFile, build.name);
+        if (build.patchOffsets == null) {
+            checkFailed("{} is {}, which can't be patched: {}",
+                        executableFile, build.name, build.unsupportedReason);
+            return null;
+        }
+        if (build.archiveChecksums.length > 0 && archiveChecksum != null) {
+            String archiveSum = joinChecksum(archiveChecksum);
+            if (!build.isKnownArchive(archiveSum)) {
+                checkFailed("data archive {} (checksum {}) doesn't go with {}",
+                            dataArchiveFile, archiveSum, build.name);
+                return null;
+            }
+        }
+        DWordBinaryPatch[] located =
+            new DWordBinaryPatch[executablePatches.length];
+        for (int i = 0; i < located.length; i++) {
+            located[i] = executablePatches[i].atOffset(build.patchOffsets[i]);
+            String patchError = located[i].testPatch(executable);
+            if (patchError != null) {
+                // The table must be wrong.
+                checkFailed("error patching {} as {}: {}", executableFile,
+                            build.name, patchError);
+                return null;
+            }
+        }
+        executableIdentity = maskedHash(executable, located);
+        return located;
+    }
+
+    private static String joinChecksum(CompletableFuture<String> checksum)
+            throws IOException {
+        try {
+            return checksum.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Find where to apply each of executablePatches.  Patches that don't
+     * match at their usual offsets are searched for, so that we can
+     * handle other builds of the game where the code has moved.
+     * @return Patches to apply, or null if we couldn't find them all
+     *         (errors will have been recorded with checkFailed).
+     */
+    private DWordBinaryPatch[] locatePatches(ByteBuffer executable) {
+        DWordBinaryPatch[] located = executablePatches.clone();
+        boolean needScan = false;
+        for (int i = 0; i < located.length; i++) {
+            String patchError = located[i].testPatch(executable);
+            if (patchError != null) {
+                logger.debug("patch not at usual offset: {}", patchError);
+                located[i] = null;
+                needScan = true;
+            }
+        }
+        if (!needScan) {
+            executableIdentity = maskedHash(executable, located);
+            return located;
+        }
+        logger.info("scanning {} for patch sites", executableFile);
+        long[][] sites =
+            new PatchSiteScanner(executablePatches).scan(executable);
+        boolean allFound = true;
+        for (int i = 0; i < located.length; i++) {
+            if (located[i] != null) {
+                continue;
+            }
+            DWordBinaryPatch patch = executablePatches[i];
+            if (sites[i].length == 1) {
+                logger.info("found patch site for 0x{} at 0x{}",
+                            Long.toHexString(patch.getOffset()),
+                            Long.toHexString(sites[i][0]));
+                located[i] = patch.atOffset(sites[i][0]);
+            } else {
+                checkFailed("error patching {}: found {} site(s) for {}",
+                            executableFile, sites[i].length, patch);
+                allFound = false;
+            }
+        }
+        if (!allFound) {
+            return null;
+        }
+        executableIdentity = maskedHash(executable, located);
+        return located;
     }
 
-    private void backUpFile(File file) throws IOException {
-        File directory = file.getParentFile();
-        String baseName = file.getName();
-        File backupFile = new File(directory, baseName + ".bak");
-        int suffix = 0;
-        while (backupFile.exists()) {
-            // Arbitrarily chosen limit of 100.
-            if (++suffix > 100) {
-                throw new RuntimeException(String.format(
-                    "can't find an available backup file name for %s", file));
+    /**
+     * @return SHA-256 of executable with every value patches fill in
+     *         zeroed, which is the same before and after patching at
+     *         any resolution.  An executable we patched in place can
+     *         then be recognized as the same one next time.
+     */
+    private static String maskedHash(ByteBuffer executable,
+                                     DWordBinaryPatch[] patches) {
+        ByteBuffer masked = ByteBuffer.allocate(executable.remaining());
+        masked.put(executable.duplicate());
+        masked.flip();
+        for (DWordBinaryPatch patch : patches) {
+            int[] pattern = patch.getBytePattern();
+            for (int i = 0; i < pattern.length; i++) {
+                if (pattern[i] < 0) {
+                    masked.put((int) patch.getOffset() + i, (byte) 0);
+                }
             }
-            backupFile =
-                new File(directory,
-                         String.format("%s.%02d.bak", baseName, suffix));
         }
-        logger.info("backing up {} to {}", file, backupFile);
-        Files.copy(file.toPath(), backupFile.toPath());
+        return OutputManifest.hash(masked);
+    }
+
+    /**
+     * Log a reason we can't patch and remember it for getCheckFailures.
+     * @param format slf4j-style message format.
+     */
+    private void checkFailed(String format, Object... arguments) {
+        String message =
+            MessageFormatter.arrayFormat(format, arguments).getMessage();
+        logger.error(message);
+        checkFailures.add(message);
+    }
+
+    /**
+     * @return Why pre-patch checks failed, if they did.
+     */
+    public List<String> getCheckFailures() {
+        return Collections.unmodifiableList(checkFailures);
     }
 
     private boolean prePatchChecks() throws IOException {
-        boolean checksPassed = true;
         // Look at the calculations done on width and height in
         // method createINIFiles.
         if (width < 284) {
-            logger.error("width must be 284 or greater");
-            checksPassed = false;
+            checkFailed("width must be 284 or greater");
         }
         if (height < 600) {
-            logger.error("height must be 600 or greater");
-            checksPassed = false;
+            checkFailed("height must be 600 or greater");
         }
         if (!executableFile.canRead()) {
-            logger.error("can't read executable file: {}", executableFile);
-            checksPassed = false;
+            checkFailed("can't read executable file: {}", executableFile);
         } else {
-            RandomAccessFile executable =
-                new RandomAccessFile(executableFile, "r");
-            for (DWordBinaryPatch patch : executablePatches) {
-                String patchError = patch.testPatch(executable);
-                if (patchError != null) {
-                    logger.error("error patching {}: {}", executableFile,
-                                 patchError);
-                    checksPassed = false;
+            patches = choosePatches(
+                ExecutablePatchPlan.readFile(executableFile));
+        }
+        if (!dataArchiveFile.canRead()) {
+            checkFailed("can't find data archive {}, should be in same"
+                        + " directory as executable", dataArchiveFile);
+        }
+        for (File directory : new File[] {outputDirectory, imagesDirectory,
+                                          scriptsDirectory}) {
+            if (directory.exists() && !directory.isDirectory()) {
+                checkFailed("{} exists but is not a directory", directory);
+            }
+        }
+        return checkFailures.isEmpty();
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    private interface IOConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
+    // These let our methods that throw IOException be used as
+    // CompletableFuture stages.  waitForStages unwraps the
+    // UncheckedIOExceptions again.
+
+    private static Runnable uncheckedRunnable(IORunnable runnable) {
+        return () -> {
+            try {
+                runnable.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static <T> Supplier<T> uncheckedSupplier(IOSupplier<T> supplier) {
+        return () -> {
+            try {
+                return supplier.get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static <T> Consumer<T> uncheckedConsumer(IOConsumer<T> consumer) {
+        return t -> {
+            try {
+                consumer.accept(t);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Wait for every stage to finish, then throw if any failed.  A stage
+     * whose prerequisite failed fails with the same exception, which is
+     * only reported once.
+     * @param stages Futures keyed by a description of what they do.
+     */
+    private void waitForStages(Map<String, CompletableFuture<?>> stages) {
+        List<String> failedStages = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<?>> stage
+                 : stages.entrySet()) {
+            try {
+                stage.getValue().join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    cause = cause.getCause();
+                }
+                logger.error("failed to {}: {}", stage.getKey(),
+                             cause.toString());
+                failedStages.add(stage.getKey());
+                if (!failures.contains(cause)) {
+                    failures.add(cause);
                 }
             }
         }
-        if (!dataArchiveFile.canRead()) {
-            logger.error("can't find data archive {}, should be in same"
-                         + " directory as executable", dataArchiveFile);
-            checksPassed = false;
+        if (!failures.isEmpty()) {
+            PatchException exception = new PatchException(
+                "failed to " + String.join(", ", failedStages));
+            failures.forEach(exception::addSuppressed);
+            throw exception;
         }
+    }
+
+    private void createOutputDirectories() {
         for (File directory : new File[] {imagesDirectory, scriptsDirectory}) {
-            if (directory.exists() && !directory.isDirectory()) {
-                logger.error("{} exists but is not a directory", directory);
-                checksPassed = false;
+            if (!directory.isDirectory()) {
+                // Another worker might be creating a shared parent.
+                if (!directory.mkdirs() && !directory.isDirectory()) {
+                    throw new RuntimeException(String.format(
+                        "failed to create directory %s", directory));
+                }
             }
         }
-        return checksPassed;
     }
 
     @Override
     protected Void doInBackground() throws Exception {
+        runPatch();
+        return null;
+    }
+
+    /**
+     * Make an output unless the manifest says it's already up to date,
+     * then record it in the manifest.  Either way this is timed as a
+     * stage in metrics, named after the output.
+     * @param name Output's path relative to the output directory.
+     * @param inputs Describes everything the output depends on.
+     * @param producer Makes the output, reporting its I/O to the stage
+     *                 it's given.
+     */
+    private void produce(String name, String inputs,
+                         IOConsumer<PatchMetrics.Stage> producer)
+            throws IOException {
+        try (PatchMetrics.Stage stage = metrics.start(name)) {
+            if (manifest.isUpToDate(name, inputs)) {
+                logger.info("{} is up to date", name);
+                return;
+            }
+            producer.accept(stage);
+            manifest.record(name, inputs);
+        }
+    }
+
+    private CPRFile openArchive() throws IOException {
+        try (PatchMetrics.Stage stage = metrics.start("open archive")) {
+            CPRFile cprFile = sources.getArchive(dataArchiveFile);
+            stage.addBytesRead(cprFile.getIndexBytesRead());
+            return cprFile;
+        }
+    }
+
+    /**
+     * @return Timings for the stages of the last run.
+     */
+    public PatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Do the actual patching on the calling thread.  doInBackground
+     * just calls this, but it can also be used without Swing.
+     * @return False if pre-patch checks failed, in which case nothing
+     *         was changed; see getCheckFailures.  Other failures are
+     *         thrown.
+     */
+    boolean runPatch() throws IOException {
         logger.info("running pre-patch checks");
         if (!prePatchChecks()) {
-            return null;
+            return false;
+        }
+        createOutputDirectories();
+        manifest = OutputManifest.load(outputDirectory, manifestFile);
+        String archiveKey = sources.archiveKey(dataArchiveFile, manifest);
+        // The stages all write to different files, and only the images
+        // and INI files need the archive.  The executable is patched
+        // last, once everything else has succeeded: a widescreen
+        // executable with the original assets is worse than no patch.
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_STAGES);
+        try {
+            Map<String, CompletableFuture<?>> stages = new LinkedHashMap<>();
+            CompletableFuture<CPRFile> archive = CompletableFuture.supplyAsync(
+                uncheckedSupplier(this::openArchive),
+                executor);
+            stages.put("resize " + WORLD_MAP_IMAGE_NAME,
+                       archive.thenAcceptAsync(
+                           uncheckedConsumer(cprFile -> produceResizedImage(
+                               cprFile, archiveKey, WORLD_MAP_IMAGE_NAME,
+                               width, height)),
+                           executor));
+            // Note the relationships between these numbers and the INI
+            // changes.  I assume this is not a coincidence.
+            stages.put("resize " + MAIN_SCREEN_IMAGE_NAME,
+                       archive.thenAcceptAsync(
+                           uncheckedConsumer(cprFile -> produceResizedImage(
+                               cprFile, archiveKey, MAIN_SCREEN_IMAGE_NAME,
+                               284, height - 600)),
+                           executor));
+            stages.put("create INI files", archive.thenAcceptAsync(
+                uncheckedConsumer(cprFile -> createINIFiles(
+                    cprFile, archiveKey)),
+                executor));
+            stages.put("patch executable", CompletableFuture.allOf(
+                stages.values().toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(uncheckedRunnable(this::patchExecutable),
+                              executor));
+            waitForStages(stages);
+        } finally {
+            executor.shutdown();
+            // Whatever did get written is still worth remembering.
+            manifest.save();
+            logger.info("stage metrics:\n{}", metrics.formatTable());
+            logger.debug("stage metrics JSON: {}", metrics.toJSON());
         }
-        CPRFile cprFile = new CPRFile(dataArchiveFile);
-        createResizedImages(cprFile);
-        createINIFiles(cprFile);
-        patchExecutable();
         logger.info("patching complete");
-        return null;
+        return true;
     }
 
     private void patchExecutable() throws IOException {
-        backUpFile(executableFile);
-        logger.info("patching {}", executableFile);
-        try (RandomAccessFile executable =
-                 new RandomAccessFile(executableFile, "rw")) {
-            for (DWordBinaryPatch patch : executablePatches) {
-                patch.patch(executable, width, height);
+        String inputs = String.format("executable %s at %dx%d",
+                                      executableIdentity, width, height);
+        produce(outputExecutableFile.getName(), inputs, stage -> {
+            ExecutablePatchPlan plan =
+                new ExecutablePatchPlan(executableFile, patches);
+            ByteBuffer original = ExecutablePatchPlan.readFile(executableFile);
+            ByteBuffer patched = plan.patchedContents(original, width, height);
+            if (journal != null) {
+                // Patching in place, the file being replaced is the one
+                // we just read.
+                journal.recordPatchSites(outputExecutableFile, original,
+                                         patches, patched);
             }
-        }
+            logger.info("patching {} into {}", executableFile,
+                        outputExecutableFile);
+            plan.applyTo(outputExecutableFile, patched);
+            stage.addBytesRead(executableFile.length());
+            stage.addBytesWritten(outputExecutableFile.length());
+        });
+    }
+
+    private void produceResizedImage(CPRFile cprFile, String archiveKey,
+                                     String fileName, int width, int height)
+            throws IOException {
+        String inputs = String.format("archive %s, %s at %dx%d, %s",
+                                      archiveKey, fileName, width, height,
+                                      RESIZE_SETTINGS);
+        produce(imagesDirectory.getName() + "/" + fileName, inputs,
+                stage -> writeResizedImage(cprFile, fileName, width, height,
+                                           stage));
     }
 
-    private void createINIFiles(CPRFile cprFile) throws IOException {
+    private void createINIFiles(CPRFile cprFile, String archiveKey)
+            throws IOException {
         HashMap<String, Object> substitutions = new HashMap<>();
         substitutions.put("width", width);
         substitutions.put("height", height);
@@ -186,63 +600,85 @@ class PatchWorker extends SwingWorker<Void, Void> {
         // might better help you figure out the significance of this value.
         // I believe the 1024 came from 1280x1024.
         substitutions.put("height600", height - 600);
-        if (!scriptsDirectory.isDirectory()) {
-            if (!scriptsDirectory.mkdir()) {
-                throw new RuntimeException(String.format(
-                    "failed to created directory %s", scriptsDirectory));
-            }
-        }
-        applyINIPatch(cprFile, "accelMap.ini", accelMapPatcher, substitutions);
+        // Sorted, so the description doesn't change from run to run.
+        String inputs = String.format("archive %s, substitutions %s",
+                                      archiveKey, new TreeMap<>(substitutions));
+        applyINIPatch(cprFile, "accelMap.ini", accelMapPatcher, substitutions,
+                      inputs);
         applyINIPatch(cprFile, "screenGame.ini", screenGamePatcher,
-                      substitutions);
-        applyINIPatch(cprFile, "textures.ini", texturesPatcher, substitutions);
+                      substitutions, inputs);
+        applyINIPatch(cprFile, "textures.ini", texturesPatcher, substitutions,
+                      inputs);
     }
 
     private void applyINIPatch(CPRFile cprFile, String iniFileName,
                                INIPatcher patcher,
-                               HashMap<String, Object> substitutions)
+                               HashMap<String, Object> substitutions,
+                               String inputs)
+            throws IOException {
+        produce(scriptsDirectory.getName() + "/" + iniFileName, inputs,
+                stage -> writePatchedINI(cprFile, iniFileName, patcher,
+                                         substitutions, stage));
+    }
+
+    private void writePatchedINI(CPRFile cprFile, String iniFileName,
+                                 INIPatcher patcher,
+                                 HashMap<String, Object> substitutions,
+                                 PatchMetrics.Stage stage)
             throws IOException {
         File outputFile = new File(scriptsDirectory, iniFileName);
-        if (outputFile.exists()) {
-            backUpFile(outputFile);
+        if (journal != null) {
+            journal.recordFile(outputFile);
         }
         logger.info("producing patched {}", iniFileName);
-        try (Reader origAccelMap = cprFile.getReader("scripts\\" + iniFileName);
-             Writer patchedAccelMap =
-                 new OutputStreamWriter(new FileOutputStream(outputFile),
-                                        CPRFile.CHARSET)) {
-            patcher.patch(origAccelMap, patchedAccelMap, substitutions);
-        }
-    }
-
-    private void createResizedImages(CPRFile cprFile) throws IOException {
-        if (!imagesDirectory.isDirectory()) {
-            if (!imagesDirectory.mkdir()) {
-                throw new RuntimeException(String.format(
-                    "failed to create directory %s", imagesDirectory));
-            }
+        // Replace rather than truncate: the old file may be hard linked
+        // from the backup store.
+        Files.deleteIfExists(outputFile.toPath());
+        try (FileChannel output = FileChannel.open(
+                 outputFile.toPath(), StandardOpenOption.CREATE_NEW,
+                 StandardOpenOption.WRITE)) {
+            String path = "scripts\\" + iniFileName;
+            patcher.patch(cprFile.getByteBuffer(path), output, substitutions);
+            stage.addBytesRead(cprFile.getLength(path));
+            stage.addBytesWritten(output.size());
         }
-        writeResizedImage(cprFile, WORLD_MAP_IMAGE_NAME, width, height);
-        // Note the relationships between these numbers and the INI
-        // changes.  I assume this is not a coincidence.
-        writeResizedImage(cprFile, MAIN_SCREEN_IMAGE_NAME, 284, height - 600);
     }
 
-    private void writeResizedImage(CPRFile cprFile, String fileName,
-                                   int width, int height)
+    /**
+     * @param stage Where to report I/O and CPU time.  Images taken from
+     *              the cache count as read but not written.
+     */
+    void writeResizedImage(CPRFile cprFile, String fileName,
+                           int width, int height, PatchMetrics.Stage stage)
             throws IOException {
         File outputBMP = new File(imagesDirectory, fileName);
-        if (outputBMP.exists()) {
-            backUpFile(outputBMP);
+        if (journal != null) {
+            journal.recordFile(outputBMP);
+        }
+        String path = "images\\" + fileName;
+        stage.addBytesRead(cprFile.getLength(path));
+        ResizedImageCache imageCache = sources.getImageCache();
+        String cacheKey = null;
+        if (imageCache != null) {
+            cacheKey = imageCache.key(cprFile.getByteBuffer(path), width,
+                                      height, RESIZE_SETTINGS);
+            if (imageCache.copyTo(cacheKey, outputBMP)) {
+                logger.info("using cached {} at {}x{}", fileName, width,
+                            height);
+                return;
+            }
         }
         logger.info("resizing {} to {}x{}", fileName, width, height);
-        InputStream originalImageStream =
-            cprFile.getInputStream("images\\" + fileName);
-        BufferedImage original = ImageIO.read(originalImageStream);
-        ResampleOp resampleOp = new ResampleOp(width, height);
-        resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.Normal);
-        BufferedImage resized = resampleOp.filter(original, null);
-        ImageIO.write(resized, "bmp", outputBMP);
+        BufferedImage original = sources.getImage(cprFile, path);
+        TiledResampler resampler = new TiledResampler(
+            AdvancedResizeOp.UnsharpenMask.Normal, RESIZE_POOL);
+        BufferedImage resized = resampler.resize(original, width, height);
+        stage.addCpuNanos(resampler.getStripCpuNanos());
+        BMPCodec.encode(resized, outputBMP);
+        stage.addBytesWritten(outputBMP.length());
+        if (imageCache != null) {
+            imageCache.store(cacheKey, outputBMP);
+        }
     }
 
 }
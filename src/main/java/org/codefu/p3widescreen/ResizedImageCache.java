@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Remembers images we've already resized so that patching again at a
+ * resolution we've used before doesn't resample anything.
+ *
+ * Entries are named by a SHA-256 over the source image's bytes, the
+ * target size, and a description of the resizing settings.  A hit is
+ * hard linked to the output where the file system allows it, else
+ * copied, and either way moved into place atomically.
+ *
+ * Since a linked output shares its data with the entry, anything that
+ * edits the output in place edits the entry too.  So next to each
+ * entry KEY.bmp is KEY.sha256, the SHA-256 of the entry as stored, and
+ * an entry that no longer matches it is thrown away rather than used.
+ * The cache is kept under a size limit by evicting the least recently
+ * used entries, using the modification times of the .sha256 files as
+ * the clock; touching the entries themselves would change the mtime of
+ * every output linked to them.
+ */
+class ResizedImageCache {
+    private static final Logger logger =
+        LoggerFactory.getLogger(ResizedImageCache.class);
+
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final String SUFFIX = ".bmp";
+    private static final String HASH_SUFFIX = ".sha256";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public ResizedImageCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return A cache in the user's home directory, or null if we can't
+     *         create one.
+     */
+    public static ResizedImageCache createDefault() {
+        Path directory = new File(System.getProperty("user.home"),
+                                  ".p3widescreen").toPath()
+            .resolve("image-cache");
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.warn("not caching resized images, can't create {}: {}",
+                        directory, e.toString());
+            return null;
+        }
+        return new ResizedImageCache(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param source The source image's encoded bytes.
+     * @param settings Anything else that affects the output, such as the
+     *                 filter used.  Change this when the output would
+     *                 change.
+     */
+    public String key(ByteBuffer source, int width, int height,
+                      String settings) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-256.
+            throw new RuntimeException(e);
+        }
+        digest.update(source.duplicate());
+        digest.update(String.format("\0%dx%d\0%s", width, height, settings)
+                          .getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    private Path hashPath(String key) {
+        return directory.resolve(key + HASH_SUFFIX);
+    }
+
+    /**
+     * @return True if the entry for key is there and still what we
+     *         stored.  One that isn't is removed.
+     */
+    private boolean isIntact(String key) throws IOException {
+        Path entry = entryPath(key);
+        String expectedHash;
+        try {
+            expectedHash = new String(Files.readAllBytes(hashPath(key)),
+                                      StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        String hash = OutputManifest.hash(entry.toFile());
+        if (hash == null) {
+            return false;
+        }
+        if (!hash.equals(expectedHash)) {
+            logger.warn("discarding {} from image cache, it has changed"
+                        + " since it was stored", entry);
+            Files.deleteIfExists(entry);
+            Files.deleteIfExists(hashPath(key));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Put a cached image at output, if we have one.
+     * @return False if the image isn't cached.
+     */
+    public boolean copyTo(String key, File output) throws IOException {
+        if (!isIntact(key)) {
+            return false;
+        }
+        Path entry = entryPath(key);
+        Path outputPath = output.toPath().toAbsolutePath();
+        Path tempPath = Files.createTempFile(outputPath.getParent(),
+                                             output.getName(), ".tmp");
+        try {
+            Files.delete(tempPath);
+            try {
+                Files.createLink(tempPath, entry);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.debug("can't link {} to {}, copying: {}", tempPath,
+                             entry, e.toString());
+                try {
+                    Files.copy(entry, tempPath);
+                } catch (NoSuchFileException evicted) {
+                    // Someone evicted it out from under us.
+                    return false;
+                }
+            }
+            Files.move(tempPath, outputPath,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        touch(hashPath(key));
+        return true;
+    }
+
+    private static void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(
+                path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects which entries get evicted first.
+            logger.debug("can't touch {}: {}", path, e.toString());
+        }
+    }
+
+    /**
+     * Add a freshly written image to the cache.  Failures are logged,
+     * not thrown: not caching something isn't a reason to stop
+     * patching.
+     */
+    public void store(String key, File image) {
+        Path tempPath = null;
+        try {
+            tempPath = Files.createTempFile(directory, key, ".tmp");
+            Files.copy(image.toPath(), tempPath,
+                       StandardCopyOption.REPLACE_EXISTING);
+            String hash = OutputManifest.hash(tempPath.toFile());
+            Files.move(tempPath, entryPath(key),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            tempPath = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tempPath, hash.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempPath, hashPath(key),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            tempPath = null;
+            evict();
+        } catch (IOException e) {
+            logger.warn("failed to cache {}: {}", image, e.toString());
+        } finally {
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException ignored) {
+                    // Nothing more we can do.
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        public final Path path;
+        public final Path hashPath;
+        public final long size;
+        public final long lastUsed;
+
+        public Entry(Path path, Path hashPath,
+                     BasicFileAttributes attributes, long lastUsed) {
+            this.path = path;
+            this.hashPath = hashPath;
+            size = attributes.size();
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> paths =
+                 Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                Path hashPath = directory.resolve(
+                    name.substring(0, name.length() - SUFFIX.length())
+                    + HASH_SUFFIX);
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(
+                        path, BasicFileAttributes.class);
+                    long lastUsed;
+                    try {
+                        lastUsed = Files.getLastModifiedTime(hashPath)
+                            .toMillis();
+                    } catch (NoSuchFileException e) {
+                        // Never completely stored, so never used.
+                        lastUsed = 0;
+                    }
+                    Entry entry = new Entry(path, hashPath, attributes,
+                                            lastUsed);
+                    entries.add(entry);
+                    totalBytes += entry.size;
+                } catch (NoSuchFileException e) {
+                    // Evicted by someone else while we were looking.
+                }
+            }
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for (Entry entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            logger.debug("evicting {} from image cache", entry.path);
+            Files.deleteIfExists(entry.path);
+            Files.deleteIfExists(entry.hashPath);
+            totalBytes -= entry.size;
+        }
+    }
+}
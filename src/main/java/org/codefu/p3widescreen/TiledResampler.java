@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014  Dale Sedivec
+ *
+ * This file is part of P3WideScreen.
+ *
+ * P3WideScreen is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * P3WideScreen is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with P3WideScreen.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.codefu.p3widescreen;
+
+import com.mortennobel.imagescaling.AdvancedResizeOp;
+import com.mortennobel.imagescaling.DimensionConstrain;
+import com.mortennobel.imagescaling.ResampleOp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resizes an image exactly as a ResampleOp with an unsharpen mask
+ * does, but with the unsharpen mask applied in horizontal strips on a
+ * fork/join pool.  ResampleOp spreads its resampling over threads
+ * itself, but the unsharpen mask it applies afterwards runs on one
+ * core, and at large sizes that dominates.
+ *
+ * So the whole image is resampled with no unsharpen mask, and then each
+ * strip of the result, plus enough rows either side to cover the
+ * mask's blur, is put through the same UnsharpFilter AdvancedResizeOp
+ * would use.  The extra rows are then cropped off.  Each output pixel
+ * comes from the same inputs by the same arithmetic as with a single
+ * ResampleOp, so the result is identical, bit for bit.  (Resampling in
+ * strips too wouldn't be: positions within a strip round differently,
+ * and the mask's threshold turns those off-by-one differences into
+ * visible ones.)
+ */
+class TiledResampler {
+    // The Gaussian blur in the UnsharpFilter that AdvancedResizeOp uses
+    // has radius 2, so its kernel reaches two rows either side.  It's
+    // blurred horizontally then vertically, but only the vertical pass
+    // reaches across strips.
+    private static final int UNSHARPEN_MARGIN = 2;
+    // Smallest strip worth the overhead of its own filter.
+    private static final int MIN_STRIP_HEIGHT = 64;
+
+    private final AdvancedResizeOp.UnsharpenMask unsharpenMask;
+    private final ForkJoinPool pool;
+    private final AtomicLong stripCpuNanos = new AtomicLong();
+
+    public TiledResampler(AdvancedResizeOp.UnsharpenMask unsharpenMask,
+                          ForkJoinPool pool) {
+        this.unsharpenMask = unsharpenMask;
+        this.pool = pool;
+    }
+
+    /**
+     * @return CPU time strips have taken on pool threads.  This doesn't
+     *         include the calling thread, nor the threads ResampleOp
+     *         starts for itself.
+     */
+    public long getStripCpuNanos() {
+        return stripCpuNanos.get();
+    }
+
+    /**
+     * Applies only the unsharpen mask an AdvancedResizeOp would, so we
+     * get exactly the library's filter and settings for it.
+     */
+    private static class UnsharpenOp extends AdvancedResizeOp {
+        public UnsharpenOp(UnsharpenMask unsharpenMask) {
+            super(DimensionConstrain.createRelativeDimension(1));
+            setUnsharpenMask(unsharpenMask);
+        }
+
+        @Override
+        protected BufferedImage doFilter(BufferedImage src,
+                                         BufferedImage dest, int dstWidth,
+                                         int dstHeight) {
+            return src;
+        }
+    }
+
+    public BufferedImage resize(BufferedImage source, int width,
+                                int height) {
+        ResampleOp resampleOp = new ResampleOp(width, height);
+        resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.None);
+        BufferedImage resampled = resampleOp.filter(source, null);
+        if (unsharpenMask == AdvancedResizeOp.UnsharpenMask.None) {
+            return resampled;
+        }
+        int rowsPerStrip = Math.max(
+            MIN_STRIP_HEIGHT,
+            (height + pool.getParallelism() * 2 - 1)
+            / (pool.getParallelism() * 2));
+        if (rowsPerStrip >= height) {
+            return new UnsharpenOp(unsharpenMask).filter(resampled, null);
+        }
+        Strips strips = new Strips(resampled, rowsPerStrip);
+        pool.invoke(new StripTask(strips, 0, strips.numStrips));
+        return strips.result;
+    }
+
+    /** Everything the strip tasks share. */
+    private class Strips {
+        public final BufferedImage resampled;
+        public final int width;
+        public final int height;
+        public final int rowsPerStrip;
+        public final int numStrips;
+        // Created by whichever strip finishes first, since only then do
+        // we know what type of image the filter produces.
+        public volatile BufferedImage result;
+
+        public Strips(BufferedImage resampled, int rowsPerStrip) {
+            this.resampled = resampled;
+            width = resampled.getWidth();
+            height = resampled.getHeight();
+            this.rowsPerStrip = rowsPerStrip;
+            numStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        }
+
+        public void unsharpenStrip(int strip) {
+            long startCpuNanos = PatchMetrics.threadCpuNanos();
+            int firstRow = strip * rowsPerStrip;
+            int endRow = Math.min(height, firstRow + rowsPerStrip);
+            int paddedFirstRow = Math.max(0, firstRow - UNSHARPEN_MARGIN);
+            int paddedEndRow = Math.min(height, endRow + UNSHARPEN_MARGIN);
+            BufferedImage band = resampled.getSubimage(
+                0, paddedFirstRow, width, paddedEndRow - paddedFirstRow);
+            BufferedImage filtered =
+                new UnsharpenOp(unsharpenMask).filter(band, null);
+            Raster rows = filtered.getRaster().createChild(
+                0, firstRow - paddedFirstRow, width, endRow - firstRow, 0,
+                firstRow, null);
+            getResult(filtered).getRaster().setRect(rows);
+            stripCpuNanos.addAndGet(
+                PatchMetrics.threadCpuNanos() - startCpuNanos);
+        }
+
+        private BufferedImage getResult(BufferedImage like) {
+            if (result == null) {
+                synchronized (this) {
+                    if (result == null) {
+                        ColorModel colorModel = like.getColorModel();
+                        result = new BufferedImage(
+                            colorModel,
+                            colorModel.createCompatibleWritableRaster(
+                                width, height),
+                            colorModel.isAlphaPremultiplied(), null);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private class StripTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Strips strips;
+        private final int firstStrip;
+        private final int endStrip;
+
+        public StripTask(Strips strips, int firstStrip, int endStrip) {
+            this.strips = strips;
+            this.firstStrip = firstStrip;
+            this.endStrip = endStrip;
+        }
+
+        @Override
+        protected void compute() {
+            if (endStrip - firstStrip == 1) {
+                strips.unsharpenStrip(firstStrip);
+            } else {
+                int middle = (firstStrip + endStrip) >>> 1;
+                invokeAll(new StripTask(strips, firstStrip, middle),
+                          new StripTask(strips, middle, endStrip));
+            }
+        }
+    }
+}